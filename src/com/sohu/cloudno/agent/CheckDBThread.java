@@ -1,35 +1,106 @@
 package com.sohu.cloudno.agent;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
-import org.apache.zookeeper.KeeperException.ConnectionLossException;
 
 import com.sohu.cloudno.comm.Conf;
 import com.sohu.cloudno.comm.Constant;
+import com.sohu.cloudno.comm.ScriptResultCache;
 import com.sohu.cloudno.comm.ToolUtil;
-import com.sohu.cloudno.comm.ZKUtil;
 
 public class CheckDBThread extends BaseThread {
     private static final Logger LOG = Logger.getLogger(CheckDBThread.class);
     private long SCRIPT_RUN_INTERVAL;
-    private long MONITOR_INTERVAL_TIME;
+    // haconf_row.sh的结果对本机所有实例相同，缓存起来避免每个实例fork一次
+    private ScriptResultCache haconfCache = new ScriptResultCache();
+    private long HACONF_CACHE_TTL;
+    private String[] haconfFiles;
+    // 本机实例的探测方式，fallback为null表示没有后备方式
+    private InstanceDiscovery discovery;
+    private InstanceDiscovery fallback;
+    // 自适应的轮询间隔
+    private PollIntervalController interval;
     private volatile boolean isReset = false;
+    // 事件源唤醒标志，由wakeLock保护
+    private final Object wakeLock = new Object();
+    private boolean wakeup = false;
+    // 异步批量同步zk节点
+    private ZnodeReconciler reconciler;
+    // 已发布节点的本地快照
+    private InstanceSnapshot snapshot;
+    // 已发布节点的漂移检查，随zk连接重建
+    private DriftDetector drift;
+    private long DRIFT_VERIFY_INTERVAL;
 
     CheckDBThread(JAgent ja, Conf conf, String desc) {
         super(ja, conf, desc);
         SCRIPT_RUN_INTERVAL = Long.parseLong(conf.get("script.run.interval"));
-        MONITOR_INTERVAL_TIME = Long.parseLong(conf
-                .get("monitor_interval_time"));
+        interval = new PollIntervalController(conf);
+        discovery = new ScriptInstanceDiscovery(SCRIPT_RUN_INTERVAL);
+        if (conf.get("discovery.provider", "script").equals("proc")) {
+            fallback = discovery;
+            discovery = new ProcInstanceDiscovery(conf);
+        }
+        HACONF_CACHE_TTL = conf.getInt("script.cache.ttl", 0);
+        String files = conf.get("script.cache.haconf.files", "").trim();
+        haconfFiles = files.equals("") ? new String[0] : files
+                .split("\\s*,\\s*");
+        reconciler = new ZnodeReconciler(conf.getInt("reconcile.window", 32),
+                conf.getInt("zookeeper.session.timeout", 10000));
+        snapshot = new InstanceSnapshot(conf.get("snapshot.file",
+                Constant.JA_SNAPSHOT));
+        DRIFT_VERIFY_INTERVAL = conf.getInt("drift.verify.interval", 600000);
     }
 
+    /**
+     * zk session重建后调用，立即唤醒本线程重新发布实例节点
+     * 
+     */
     public void reset() {
         isReset = true;
+        wakeup();
+    }
+
+    /**
+     * 立即开始下一轮检查，由DiscoveryTrigger等事件源调用
+     * 
+     */
+    public void wakeup() {
+        synchronized (wakeLock) {
+            wakeup = true;
+            wakeLock.notifyAll();
+        }
+    }
+
+    /**
+     * 等待下一轮检查，到达指定时间或者被wakeup唤醒时返回
+     * 
+     * @param millisecond
+     * @return boolean false表示被中断
+     */
+    private boolean await(long millisecond) {
+        long deadline = System.currentTimeMillis() + millisecond;
+        synchronized (wakeLock) {
+            try {
+                for (long left = millisecond; !wakeup && left > 0; left = deadline
+                        - System.currentTimeMillis()) {
+                    wakeLock.wait(left);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                LOG.warn("recive interrupted", e);
+                return false;
+            } finally {
+                wakeup = false;
+            }
+        }
     }
 
     /**
@@ -39,151 +110,313 @@ public class CheckDBThread extends BaseThread {
     @Override
     public void run() {
         setThreadName();
-        String root = Constant.ROOT + Constant.INSTANCE;
-        List<String> grpList = new ArrayList<String>();
-        Map<String, byte[]> zkTree = new LinkedHashMap<String, byte[]>();
-        Map<String, byte[]> tmpTree = new LinkedHashMap<String, byte[]>();
-        long refreshTime = 3600000 * (12 + Math.round(Math.random() * 12));
-        long time = 0;
-        String infs_raw = "";
-
-        for (;; ToolUtil.sleep(MONITOR_INTERVAL_TIME)) {
+        Set<String> grpSet = new HashSet<String>();
+        Map<String, InstanceRecord> zkTree = new HashMap<String, InstanceRecord>();
+        long verifyTime = System.currentTimeMillis();
+        // 上一轮已经完整同步到zk的脚本输出摘要，null表示需要重新同步
+        String lastHash = null;
+        // 本轮是否发现变化或者刚开始出错，决定下一轮的轮询间隔
+        boolean active = false;
+        // 最近一次出错时的输出摘要，持续同样的错误只在第一次开始快速轮询，之后逐步退避
+        String lastErrorHash = null;
+        // 是否需要从本地快照恢复已发布的节点
+        boolean restore = true;
+        drift = new DriftDetector(ja.getZkw(), this);
+        ja.getZkw().registerListener(drift);
+
+        for (;; await(interval.next(active))) {
             // LOG.info("CheckDBThread");
+            active = false;
             if (isReset) {
                 isReset = false;
-                grpList.clear();
-                zkTree.clear();
-                ToolUtil.sleep(ja.getZkw().getZooKeeper().getSessionTimeout());
+                drift = new DriftDetector(ja.getZkw(), this);
+                ja.getZkw().registerListener(drift);
+                // 旧session的临时节点已经被服务端删除，不等脚本输出，按本地镜像立即并发重建
+                try {
+                    republish(grpSet, zkTree);
+                } catch (InterruptedException e) {
+                    LOG.info(desc + " interrupted, exit");
+                    return;
+                } catch (Exception e) {
+                    LOG.warn("republish instances error", e);
+                    grpSet.clear();
+                    zkTree.clear();
+                }
+                lastHash = null;
             }
-
-            // 定期跳过本地镜像同步zk节点
-            time += MONITOR_INTERVAL_TIME;
-            if (time >= refreshTime
-                    && infs_raw.equals(ToolUtil.runOSCmdRaw(
-                            Constant.SH_CHECK_DB, SCRIPT_RUN_INTERVAL))) {
-                grpList.clear();
-                zkTree.clear();
-                time = 0;
-                refreshTime = 3600000 * (12 + Math.round(Math.random() * 12));
+            if (restore) {
+                try {
+                    restore(grpSet, zkTree);
+                    restore = false;
+                } catch (InterruptedException e) {
+                    LOG.info(desc + " interrupted, exit");
+                    return;
+                } catch (Exception e) {
+                    LOG.warn("restore from snapshot error", e);
+                }
             }
 
             // 读取本地数据库实例列表信息
-            infs_raw = ToolUtil.runOSCmdRaw(Constant.SH_CHECK_DB,
-                    SCRIPT_RUN_INTERVAL);
+            String infs_raw = discovery.discover();
+            if (null == infs_raw && null != fallback) {
+                LOG.warn(discovery + " failed, fallback to " + fallback);
+                infs_raw = fallback.discover();
+            }
             if (null == infs_raw || infs_raw.equals("")) {
-                infs_raw = "";
+                if (!"".equals(lastErrorHash)) {
+                    lastErrorHash = "";
+                    active = true;
+                }
                 continue;
             }
+
+            // 定期确认已发布的节点，并重新生成节点数据(haconf的结果可能变化)
+            if (System.currentTimeMillis() - verifyTime >= DRIFT_VERIFY_INTERVAL) {
+                LOG.info("verify all instances, " + haconfCache);
+                haconfCache.invalidate(Constant.SH_HACONF);
+                drift.verify();
+                for (InstanceRecord r : new HashSet<InstanceRecord>(
+                        zkTree.values())) {
+                    if (!Arrays.equals(buildData(r), r.getData())) {
+                        drift.untrack(Collections.singleton(r.getInstPath()));
+                        zkTree.remove(r.getInstPath());
+                        lastHash = null;
+                    }
+                }
+                verifyTime = System.currentTimeMillis();
+            }
+
+            // 被外部删除或者修改的节点从本地镜像去掉，本轮重写
+            Set<String> drifted = drift.drain();
+            if (!drifted.isEmpty()) {
+                LOG.info("repair " + drifted.size() + " drifted znodes");
+                grpSet.removeAll(drifted);
+                zkTree.keySet().removeAll(drifted);
+                lastHash = null;
+            }
+
+            // 脚本输出没有变化并且上一轮已经完整同步，本轮无事可做
+            String hash = ToolUtil.md5Hex(infs_raw);
+            if (hash.equals(lastHash))
+                continue;
+
             String infs = infs_raw.replace("JA_RESULT=", "").trim();
             if (infs.equals("E")) {
                 LOG.error("script error!");
+                if (!hash.equals(lastErrorHash)) {
+                    lastErrorHash = hash;
+                    active = true;
+                }
                 continue;
             }
+            lastErrorHash = null;
+            active = true;
             try {
                 if (infs.equals("Y") || infs.equals("R")) {
-                    for (Iterator<Entry<String, byte[]>> i = zkTree.entrySet()
-                            .iterator(); i.hasNext();) {
-                        String inst = i.next().getKey();
-                        ZKUtil.delNodeRecursively(ja.getZkw(), inst);
-                        i.remove();
-                        zkTree.remove(inst);
-                    }
+                    drift.untrack(zkTree.keySet());
+                    zkTree.keySet().removeAll(
+                            reconciler.delete(ja.getZkw(), zkTree.keySet()));
+                    if (zkTree.isEmpty())
+                        lastHash = hash;
+                    snapshot.save(grpSet, zkTree);
                     LOG.info("No db running now, try again later...");
                     continue;
                 }
 
-                tmpTree.clear();
-                for (String inf : infs.split("\n")) {
-                    String[] dbInf = inf.split(":");
-                    if (6 != dbInf.length)
-                        continue;
-                    String GRP = ZKUtil.joinZNode(root, dbInf[2]);
-                    String grp = ZKUtil.joinZNode(GRP, "grp@" + dbInf[3]);
-                    String inst = ZKUtil.joinZNode(grp, "inst@" + dbInf[4]);
-                    StringBuilder data = new StringBuilder(dbInf[5]);
-
-                    if (!dbInf[0].equals("C")) {
-                        data.append("@is_ha=").append(dbInf[0])
-                                .append("@is_keepalived=").append(dbInf[0]);
-                    }
+                Map<String, InstanceRecord> tmpTree = new LinkedHashMap<String, InstanceRecord>();
+                for (InstanceRecord r : InstanceRecord.parse(infs)) {
+                    tmpTree.put(r.getInstPath(), r);
+                }
+                InstanceDiff diff = new InstanceDiff(zkTree, tmpTree);
+                LOG.info("instances changed, " + diff);
 
-                    if (dbInf[0].equals("Y")
-                            && dbInf[1].equalsIgnoreCase("mysql")) {
-                        String haconf = ToolUtil.runOSCmdRaw(
-                                Constant.SH_HACONF, SCRIPT_RUN_INTERVAL);
-                        if (null != haconf && haconf.trim().equals("10")) {
-                            data.append("@haVersion=keepalived+lvs");
-                        } else {
-                            data.append("@haVersion=keepalived");
-                        }
+                // 只为新增和变化的实例生成节点数据
+                Map<String, byte[]> newGRPs = new LinkedHashMap<String, byte[]>();
+                Map<String, byte[]> newGrps = new LinkedHashMap<String, byte[]>();
+                Map<String, byte[]> addList = new LinkedHashMap<String, byte[]>();
+                Map<String, byte[]> updList = new LinkedHashMap<String, byte[]>();
+                for (InstanceRecord r : diff.getAdded()) {
+                    r.setData(buildData(r));
+                    addList.put(r.getInstPath(), r.getData());
+                    if (!grpSet.contains(r.getGrpRootPath())) {
+                        newGRPs.put(r.getGrpRootPath(), ToolUtil.toByte("GRP"));
                     }
-
-                    tmpTree.put(inst, ToolUtil.toByte(data.toString()));
-
-                    if (!grpList.contains(GRP)) {
-                        if (ZKUtil.creatAndFailSilent(ja.getZkw(), GRP,
-                                ToolUtil.toByte("GRP")))
-                            grpList.add(GRP);
+                    if (!grpSet.contains(r.getGrpPath())
+                            && null != r.getGrpData()) {
+                        newGrps.put(r.getGrpPath(),
+                                ToolUtil.toByte(r.getGrpData()));
                     }
-
-                    // zookeeper的watcher机制问题，两次动作最好错开一定时间，要不消息会丢囧rz
-                    ToolUtil.sleep(200);
-
-                    if (!grpList.contains(grp)) {
-                        if (dbInf[1].equalsIgnoreCase("mysql")
-                                || dbInf[1].equalsIgnoreCase("oracle")
-                                || dbInf[1].equalsIgnoreCase("mongodb")
-                                || dbInf[1].equalsIgnoreCase("PXCW")) {
-                            if (ZKUtil.creatAndFailSilent(ja.getZkw(), grp,
-                                    ToolUtil.toByte("W")))
-                                grpList.add(grp);
-                        } else if (dbInf[1].equalsIgnoreCase("lvs")
-                                || dbInf[1].equalsIgnoreCase("proxy")
-                                || dbInf[1].equalsIgnoreCase("PXCR")) {
-                            if (ZKUtil.creatAndFailSilent(ja.getZkw(), grp,
-                                    ToolUtil.toByte("R")))
-                                grpList.add(grp);
-                        }
+                }
+                for (InstanceRecord r : diff.getChanged()) {
+                    r.setData(buildData(r));
+                    if (!Arrays.equals(r.getData(),
+                            zkTree.get(r.getInstPath()).getData())) {
+                        updList.put(r.getInstPath(), r.getData());
+                    } else {
+                        zkTree.put(r.getInstPath(), r);
                     }
                 }
 
+                // 按照父节点先于子节点的顺序分批提交，批内并发
+                track(reconciler.createPersistent(ja.getZkw(), newGRPs), grpSet);
+                track(reconciler.createPersistent(ja.getZkw(), newGrps), grpSet);
+
                 // delete zkTree和ZooKeeper的多余节点
-                for (Iterator<Entry<String, byte[]>> i = zkTree.entrySet()
-                        .iterator(); i.hasNext();) {
-                    ToolUtil.sleep(200);
-                    String inst = i.next().getKey();
-
-                    if (!tmpTree.containsKey(inst)) {
-                        ZKUtil.delNodeRecursively(ja.getZkw(), inst);
-                        i.remove();
+                drift.untrack(diff.getRemoved());
+                zkTree.keySet().removeAll(
+                        reconciler.delete(ja.getZkw(), diff.getRemoved()));
+
+                // 更新失败的节点(比如已被删除)从zkTree去掉，下一轮重新建立
+                drift.expect(updList, true);
+                Set<String> updated = reconciler.setData(ja.getZkw(), updList);
+                for (String inst : updList.keySet()) {
+                    if (updated.contains(inst))
+                        zkTree.put(inst, tmpTree.get(inst));
+                    else
                         zkTree.remove(inst);
-                    }
                 }
 
-                // update insert zkTree和ZooKeeper的节点
-                for (Entry<String, byte[]> node : tmpTree.entrySet()) {
-                    ToolUtil.sleep(200);
-                    String inst = node.getKey();
-                    byte[] data = node.getValue();
-
-                    if (zkTree.containsKey(inst)) {
-                        String zkDataStr = ToolUtil.toStr(zkTree.get(inst));
-                        String tmpDataStr = ToolUtil.toStr(data);
-
-                        if (!zkDataStr.equals(tmpDataStr)) {
-                            if (ZKUtil.setData(ja.getZkw(), inst, data, -1))
-                                zkTree.put(inst, data);
-                        }
-                    } else {
-                        if (ZKUtil.creatEphemeralNodeNoWatch(ja.getZkw(), inst,
-                                data))
-                            zkTree.put(inst, data);
-                    }
+                drift.expect(addList, true);
+                Set<String> created = reconciler.createEphemeral(ja.getZkw(),
+                        addList);
+                for (String inst : created) {
+                    zkTree.put(inst, tmpTree.get(inst));
                 }
-            } catch (ConnectionLossException e) {
+                updated.addAll(created);
+                drift.track(instData(zkTree, updated), true);
+
+                // 全部成功才记录摘要，否则下一轮继续同步
+                if (zkTree.equals(tmpTree))
+                    lastHash = hash;
+                snapshot.save(grpSet, zkTree);
+            } catch (InterruptedException e) {
+                LOG.info(desc + " interrupted, exit");
+                return;
             } catch (Exception e) {
                 abort(desc, e);
             }
         }
     }
+
+    /**
+     * 在新session上按照本地镜像重新发布节点，失败的节点从镜像去掉，留给下一轮同步
+     * 
+     * @param grpSet
+     * @param zkTree
+     * @throws InterruptedException
+     */
+    private void republish(Set<String> grpSet, Map<String, InstanceRecord> zkTree)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Map<String, byte[]> grpRoots = new LinkedHashMap<String, byte[]>();
+        Map<String, byte[]> grps = new LinkedHashMap<String, byte[]>();
+        for (InstanceRecord r : zkTree.values()) {
+            grpRoots.put(r.getGrpRootPath(), ToolUtil.toByte("GRP"));
+            if (null != r.getGrpData())
+                grps.put(r.getGrpPath(), ToolUtil.toByte(r.getGrpData()));
+        }
+        grpSet.clear();
+        track(reconciler.createPersistent(ja.getZkw(), grpRoots), grpSet);
+        track(reconciler.createPersistent(ja.getZkw(), grps), grpSet);
+
+        Map<String, byte[]> insts = instData(zkTree, zkTree.keySet());
+        drift.expect(insts, true);
+        Set<String> created = reconciler.createEphemeral(ja.getZkw(), insts);
+        zkTree.keySet().retainAll(created);
+        drift.track(instData(zkTree, created), true);
+        snapshot.save(grpSet, zkTree);
+        LOG.info("republish " + zkTree.size() + "/" + insts.size()
+                + " instances in " + (System.currentTimeMillis() - start)
+                + "ms");
+    }
+
+    /**
+     * 从本地快照恢复已发布的节点，一次批量读取快照中的节点，
+     * 只接受zk上仍然存在、属于本agent并且数据一致的节点，其余的留给同步逻辑重新写入
+     * 
+     * @param grpSet
+     * @param zkTree
+     * @throws InterruptedException
+     */
+    private void restore(Set<String> grpSet, Map<String, InstanceRecord> zkTree)
+            throws InterruptedException {
+        if (!snapshot.load())
+            return;
+        Set<String> paths = new HashSet<String>(snapshot.getGrps());
+        paths.addAll(snapshot.getInsts().keySet());
+        Map<String, byte[]> existing = reconciler.read(ja.getZkw(), paths);
+
+        Set<String> grps = new HashSet<String>();
+        for (String grp : snapshot.getGrps()) {
+            if (existing.containsKey(grp))
+                grps.add(grp);
+        }
+        track(grps, grpSet);
+        for (InstanceRecord r : snapshot.getInsts().values()) {
+            byte[] data = existing.get(r.getInstPath());
+            if (data != null && Arrays.equals(data, r.getData()))
+                zkTree.put(r.getInstPath(), r);
+        }
+        drift.track(instData(zkTree, zkTree.keySet()), true);
+        LOG.info("restore from snapshot, groups " + grpSet.size() + "/"
+                + snapshot.getGrps().size() + ", instances " + zkTree.size()
+                + "/" + snapshot.getInsts().size());
+    }
+
+    /**
+     * 记录已经建立的group节点并开始检查
+     * 
+     * @param grps
+     * @param grpSet
+     */
+    private void track(Set<String> grps, Set<String> grpSet) {
+        Map<String, byte[]> nodes = new HashMap<String, byte[]>();
+        for (String grp : grps) {
+            nodes.put(grp, null);
+        }
+        drift.track(nodes, false);
+        grpSet.addAll(grps);
+    }
+
+    /**
+     * 取出实例节点的数据
+     * 
+     * @param zkTree
+     * @param insts
+     * @return Map
+     */
+    private static Map<String, byte[]> instData(
+            Map<String, InstanceRecord> zkTree, Set<String> insts) {
+        Map<String, byte[]> nodes = new HashMap<String, byte[]>();
+        for (String inst : insts) {
+            nodes.put(inst, zkTree.get(inst).getData());
+        }
+        return nodes;
+    }
+
+    /**
+     * 生成实例节点的数据
+     * 
+     * @param r
+     * @return byte[]
+     */
+    private byte[] buildData(InstanceRecord r) {
+        StringBuilder data = new StringBuilder(r.getInfo());
+
+        if (!r.getIsHa().equals("C")) {
+            data.append("@is_ha=").append(r.getIsHa())
+                    .append("@is_keepalived=").append(r.getIsHa());
+        }
+
+        if (r.getIsHa().equals("Y") && r.getType().equalsIgnoreCase("mysql")) {
+            String haconf = haconfCache.runOSCmdRaw(Constant.SH_HACONF,
+                    SCRIPT_RUN_INTERVAL, HACONF_CACHE_TTL, true, haconfFiles);
+            if (null != haconf && haconf.trim().equals("10")) {
+                data.append("@haVersion=keepalived+lvs");
+            } else {
+                data.append("@haVersion=keepalived");
+            }
+        }
+        return ToolUtil.toByte(data.toString());
+    }
 }
\ No newline at end of file
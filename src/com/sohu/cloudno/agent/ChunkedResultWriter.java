@@ -0,0 +1,365 @@
+package com.sohu.cloudno.agent;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+
+import com.sohu.cloudno.comm.OutputFrame;
+import com.sohu.cloudno.comm.SpillDescriptor;
+import com.sohu.cloudno.comm.ToolUtil;
+import com.sohu.cloudno.comm.ZKUtil;
+
+/**
+ * 把多行输出合并成一个CHUNK帧写到一个节点cmd@id_i或者cmd@id/i
+ *
+ * <p>
+ * 缓冲的输出达到chunkSize字节时立即写出；不满一块时，从缓冲第一行开始最多等待linger毫秒
+ * 由定时线程写出，交互式命令的输出仍然能及时返回。一行不会被拆到两块中。
+ * 客户端声明能够解码deflate时，足够大的块压缩后写出。
+ *
+ * <p>
+ * 输出总量超过spillThreshold后，剩余的输出写到本地文件，由SpillServer提供给客户端，
+ * 开始溢出时在zk上写一个SPILL帧，客户端随即边写边读；大块输出不经过zk，也不受节点1MB的限制。
+ * 溢出的输出同样最多等待linger毫秒就刷到文件。
+ *
+ * <p>
+ * 有流量控制窗口时，写出节点前等待客户端确认。一次write可能写出多个节点，写出线程会持锁等待窗口，
+ * 所以定时线程用tryLock取锁，取不到锁或者窗口没有空间时稍后再试，不会阻塞共享的定时线程。
+ */
+class ChunkedResultWriter implements ResultWriter {
+    private static final Logger LOG = Logger
+            .getLogger(ChunkedResultWriter.class);
+    private final JAgent ja;
+    private final String nodePrefix;
+    private final int chunkSize;
+    private final long linger;
+    // 负载不小于这个长度时压缩，Integer.MAX_VALUE表示不压缩
+    private final int minDeflate;
+    private final ScheduledExecutorService timer;
+    // 保护下面的状态，写出线程持有它时可能在等待窗口
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private int i = 0;
+    private int lines = 0;
+    private ScheduledFuture<?> pendingFlush = null;
+    // 定时线程写出时的异常，由下一次write或者close抛出
+    private Exception error = null;
+    // 输出溢出到本地文件，spill为null表示不溢出
+    private final SpillServer spill;
+    private final long spillThreshold;
+    private long total = 0;
+    private File spillFile = null;
+    private SpillServer.Spill spilled = null;
+    private CheckedOutputStream spillOut = null;
+    private long spillSize = 0;
+    private String spillError = null;
+    // 流量控制窗口，null表示不控制
+    private final OutputWindow window;
+    // 客户端删除了命令的输出父节点，不再读取
+    private boolean abandoned = false;
+    // 用END帧结束输出
+    private final boolean endFrame;
+
+    ChunkedResultWriter(JAgent ja, String nodePrefix, int chunkSize,
+            long linger, int minDeflate, ScheduledExecutorService timer,
+            SpillServer spill, long spillThreshold, OutputWindow window,
+            boolean endFrame) {
+        this.ja = ja;
+        this.nodePrefix = nodePrefix;
+        this.chunkSize = chunkSize;
+        this.linger = linger;
+        this.minDeflate = minDeflate;
+        this.spill = spill;
+        this.spillThreshold = spillThreshold;
+        this.timer = timer;
+        this.window = window;
+        this.endFrame = endFrame;
+    }
+
+    @Override
+    public void write(String line) throws KeeperException,
+            InterruptedException {
+        if (window != null)
+            window.acquire(nextIndex());
+        writeLine(line);
+    }
+
+    private int nextIndex() {
+        lock.lock();
+        try {
+            return i;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLine(String line) throws KeeperException,
+            InterruptedException {
+        lock.lock();
+        try {
+            writeLocked(line);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLocked(String line) throws KeeperException,
+            InterruptedException {
+        checkError();
+        if (abandoned)
+            return;
+        byte[] b = ToolUtil.toByte(line + "\n");
+        total += b.length;
+        if (spillFile == null && spill != null && total > spillThreshold) {
+            // 已经缓冲的输出先写到zk，保证顺序
+            flush();
+            openSpill();
+        }
+        if (spillFile != null) {
+            writeSpill(b);
+            if (pendingFlush == null && linger > 0)
+                scheduleFlush();
+            return;
+        }
+        if (buf.size() > 0 && buf.size() + b.length > chunkSize)
+            flush();
+        buf.write(b, 0, b.length);
+        lines++;
+        if (buf.size() >= chunkSize) {
+            flush();
+        } else if (pendingFlush == null && linger > 0) {
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        pendingFlush = retryFlush();
+    }
+
+    private ScheduledFuture<?> retryFlush() {
+        return timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                lingerFlush();
+            }
+        }, linger, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close(int exitValue) throws KeeperException,
+            InterruptedException {
+        lock.lock();
+        try {
+            checkError();
+            flush();
+            if (spillFile != null)
+                closeSpill();
+            if (!abandoned)
+                create(nodePrefix + i, LineResultWriter.eof(endFrame,
+                        exitValue));
+            if (window != null)
+                window.release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void lingerFlush() {
+        if (!lock.tryLock()) {
+            // 写出线程持有锁，可能正在等待窗口；重试不占用pendingFlush，
+            // 多出的一次定时写出只会提前写出不满的块
+            retryFlush();
+            return;
+        }
+        try {
+            pendingFlush = null;
+            if (error != null)
+                return;
+            if (window != null && buf.size() > 0 && !window.available(i)) {
+                // 客户端还没有确认，稍后再试
+                scheduleFlush();
+                return;
+            }
+            flush();
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush() throws KeeperException, InterruptedException {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        if (spilled != null)
+            flushSpill();
+        if (buf.size() == 0)
+            return;
+        if (abandoned) {
+            buf.reset();
+            lines = 0;
+            return;
+        }
+        if (window != null)
+            window.acquire(i);
+        byte[] frame = OutputFrame.encode(OutputFrame.CHUNK,
+                buf.toByteArray(), buf.size(), minDeflate);
+        LOG.info("Return command result: " + nodePrefix + i + ", "
+                + lines + " lines, " + buf.size() + " bytes, "
+                + frame.length + " bytes written");
+        create(nodePrefix + i, frame);
+        i++;
+        lines = 0;
+        buf.reset();
+    }
+
+    /**
+     * 建立溢出文件，立即登记并写SPILL帧，客户端不用等命令结束
+     */
+    private void openSpill() throws KeeperException, InterruptedException {
+        if (abandoned)
+            return;
+        try {
+            spillFile = spill.createFile();
+            spillOut = new CheckedOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(spillFile)), new CRC32());
+        } catch (IOException e) {
+            // 不能溢出时继续写zk
+            LOG.warn("can not spill output of " + nodePrefix, e);
+            if (spillFile != null)
+                spillFile.delete();
+            spillFile = null;
+            return;
+        }
+        spilled = spill.register(spillFile);
+        SpillDescriptor d = new SpillDescriptor(spill.getHost(), spill
+                .getPort(), spilled.getToken());
+        LOG.info("output of " + nodePrefix + " exceeds " + spillThreshold
+                + " bytes, spill to " + spillFile + ", " + nodePrefix + i
+                + " " + d);
+        byte[] b = d.encode();
+        if (window != null)
+            window.acquire(i);
+        create(nodePrefix + i++, OutputFrame.encode(OutputFrame.SPILL, b,
+                b.length));
+    }
+
+    // 缓冲的溢出输出刷到文件，通知正在读取的客户端
+    private void flushSpill() {
+        if (spillError != null)
+            return;
+        try {
+            spillOut.flush();
+            spilled.written(spillSize);
+        } catch (IOException e) {
+            LOG.warn("spill output of " + nodePrefix + " error", e);
+            spillError = e.getMessage();
+        }
+    }
+
+    private void writeSpill(byte[] b) {
+        if (spillError != null)
+            return;
+        try {
+            spillOut.write(b);
+            spillSize += b.length;
+        } catch (IOException e) {
+            LOG.warn("spill output of " + nodePrefix + " error", e);
+            spillError = e.getMessage();
+        }
+    }
+
+    @Override
+    public void cancel() throws KeeperException, InterruptedException {
+        // 先唤醒等待窗口的写出线程，它释放锁之后才能取消
+        if (window != null)
+            window.release();
+        cancelLocked();
+    }
+
+    private void cancelLocked() throws KeeperException, InterruptedException {
+        lock.lock();
+        try {
+            if (pendingFlush != null) {
+                pendingFlush.cancel(false);
+                pendingFlush = null;
+            }
+            buf.reset();
+            if (spillFile != null) {
+                try {
+                    spillOut.close();
+                } catch (IOException e) {
+                }
+                spilled.abort();
+                spillFile = null;
+            }
+            LineResultWriter.writeCancelled(ja, nodePrefix, i, endFrame);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭溢出文件，通知SpillServer输出已经完整；出错时作废溢出文件，在zk上写一行错误信息
+     */
+    private void closeSpill() throws KeeperException, InterruptedException {
+        try {
+            spillOut.close();
+        } catch (IOException e) {
+            if (spillError == null)
+                spillError = e.getMessage();
+        }
+        if (abandoned) {
+            spilled.abort();
+            return;
+        }
+        if (spillError != null) {
+            spilled.abort();
+            byte[] b = ToolUtil.toByte("JA_ERROR: spill output failed, "
+                    + spillError + "\n");
+            if (window != null)
+                window.acquire(i);
+            create(nodePrefix + i++, OutputFrame.encode(OutputFrame.CHUNK, b,
+                    b.length));
+            return;
+        }
+        LOG.info("Return command result: " + nodePrefix + ", spill "
+                + spillSize + " bytes, crc32 "
+                + Long.toHexString(spillOut.getChecksum().getValue()));
+        spilled.complete(spillSize, spillOut.getChecksum().getValue());
+    }
+
+    // 父节点被客户端删除后不再写出，丢弃之后的输出
+    private void create(String node, byte[] data) throws KeeperException,
+            InterruptedException {
+        try {
+            ZKUtil.creatEphemeralNode(ja.getZkw(), node, data);
+        } catch (NoNodeException e) {
+            abandoned = true;
+            LOG.info("parent of " + node + " removed by client, discard output");
+            if (window != null)
+                window.release();
+        }
+    }
+
+    private void checkError() throws KeeperException, InterruptedException {
+        if (error instanceof KeeperException)
+            throw (KeeperException) error;
+        if (error instanceof InterruptedException)
+            throw (InterruptedException) error;
+    }
+}
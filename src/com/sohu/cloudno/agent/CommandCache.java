@@ -0,0 +1,136 @@
+package com.sohu.cloudno.agent;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * 幂等远程命令的输出缓存，以命令行为key，按LRU淘汰
+ *
+ * <p>
+ * 带cacheable=ttl属性的命令先查缓存，命中时直接回放输出，不再fork进程。
+ * 没有命中但相同的命令正在执行时，等待它结束并共享它的输出；
+ * 执行失败(没有得到完整输出)时等待者重新查找，其中一个成为新的执行者，其余的等待它。
+ * 所以lookup返回null的调用方一定是当前执行的建立者，只有它调用complete。
+ * 只有退出码为0的输出进入缓存。
+ */
+class CommandCache {
+    private final int maxEntries;
+    // 缓存的输出，access order的LinkedHashMap实现LRU
+    private final Map<String, Result> cache;
+    // 正在执行的命令
+    private final Map<String, Flight> flights = new HashMap<String, Flight>();
+    private long hits = 0;
+    private long misses = 0;
+    private long collapsed = 0;
+
+    CommandCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+                return size() > CommandCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * 查找命令的输出
+     *
+     * @param key
+     * @return Result null表示调用方需要自己执行，执行完后必须调用{@link #complete}
+     * @throws InterruptedException
+     */
+    Result lookup(String key) throws InterruptedException {
+        for (;;) {
+            Flight flight;
+            synchronized (this) {
+                Result r = cache.get(key);
+                if (r != null && r.expireAt > System.currentTimeMillis()) {
+                    hits++;
+                    return r;
+                }
+                if (r != null)
+                    cache.remove(key);
+                flight = flights.get(key);
+                if (flight == null) {
+                    misses++;
+                    flights.put(key, new Flight());
+                    return null;
+                }
+                collapsed++;
+            }
+            flight.done.await();
+            if (flight.result != null)
+                return flight.result;
+            // 执行者没有得到完整输出，重新查找
+        }
+    }
+
+    /**
+     * 命令执行结束，唤醒等待者并缓存输出
+     *
+     * @param key
+     * @param result
+     *            null表示没有得到完整输出
+     */
+    void complete(String key, Result result) {
+        Flight flight;
+        synchronized (this) {
+            flight = flights.remove(key);
+            if (result != null && result.exitValue == 0)
+                cache.put(key, result);
+        }
+        if (flight != null) {
+            flight.result = result;
+            flight.done.countDown();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "cache entries=" + cache.size() + ", hits=" + hits
+                + ", misses=" + misses + ", collapsed=" + collapsed;
+    }
+
+    /**
+     * 一次执行的完整输出
+     */
+    static class Result {
+        private final List<String> lines;
+        private final int exitValue;
+        private final long expireAt;
+
+        Result(List<String> lines, int exitValue, long ttl) {
+            this.lines = lines;
+            this.exitValue = exitValue;
+            this.expireAt = System.currentTimeMillis() + ttl;
+        }
+
+        /**
+         * 把输出写到另一个命令的output
+         *
+         * @param writer
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void replay(ResultWriter writer) throws KeeperException,
+                InterruptedException {
+            for (String line : lines) {
+                writer.write(line);
+            }
+            writer.close(exitValue);
+        }
+    }
+
+    private static class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Result result;
+    }
+}
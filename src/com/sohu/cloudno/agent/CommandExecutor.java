@@ -0,0 +1,465 @@
+package com.sohu.cloudno.agent;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+
+import com.sohu.cloudno.comm.CommandEnvelope;
+import com.sohu.cloudno.comm.Conf;
+import com.sohu.cloudno.comm.Constant;
+import com.sohu.cloudno.comm.ShellPool;
+import com.sohu.cloudno.comm.ToolUtil;
+import com.sohu.cloudno.comm.ZKUtil;
+
+/**
+ * 远程命令的执行服务，代替每个命令一个线程
+ *
+ * <p>
+ * 最多exec.workers个命令同时执行，其余的按优先级(高的先执行)和序列号排队，
+ * 排队的命令不超过exec.queue.size个。饱和时按exec.saturation处理：
+ * <ul>
+ * <li>queue：命令留在input节点上不取走，有空闲时由RemoteCommandHandle重新读取</li>
+ * <li>reject：取走命令，直接返回一行"JA_REJECTED"和EOF</li>
+ * </ul>
+ *
+ * <p>
+ * 客户端在input节点上建立cancel@id取消命令：排队中的命令不再执行，正在执行的命令kill整个进程树，
+ * 两种情况都删除客户端还没有取走的输出，返回一行"JA_CANCELLED"和EOF。
+ * 取消请求先于命令到达时记下序列号，命令到达时直接取消。
+ */
+class CommandExecutor {
+    private static final Logger LOG = Logger.getLogger(CommandExecutor.class);
+    static final String REJECTED = Constant.JA_REJECTED;
+    static final String CANCELLED = Constant.JA_CANCELLED;
+    // 记住的先于命令到达的取消请求个数
+    private static final int MAX_EARLY_CANCELS = 1024;
+
+    private final JAgent ja;
+    private final Conf conf;
+    private final int capacity;
+    private final boolean reject;
+    private final ThreadPoolExecutor pool;
+    // 排队和正在执行的命令数
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    // 排队和正在执行的命令
+    private final Map<Long, Task> tasks = new ConcurrentHashMap<Long, Task>();
+    // 还没有收到命令的取消请求，按到达顺序淘汰
+    private final Map<Long, Boolean> earlyCancels = new LinkedHashMap<Long, Boolean>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > MAX_EARLY_CANCELS;
+        }
+    };
+    // 饱和期间是否有命令留在input节点上
+    private volatile boolean deferred = false;
+    // 输出分块的大小和最长等待时间，chunkSize为0时每行一个节点
+    private final int chunkSize;
+    private final long linger;
+    // 块不小于这个长度时才压缩
+    private final int minDeflate;
+    // 不满一块的输出按时写出
+    private final ScheduledExecutorService timer;
+    // 大块输出的本地服务，null表示不溢出
+    private SpillServer spill = null;
+    private long spillThreshold;
+    // 连接客户端直连地址的超时时间
+    private final int directTimeout;
+    // 客户端不确认输出时暂停写出的最长时间
+    private final int windowStall;
+    // 幂等命令的输出缓存
+    private final CommandCache cache;
+    private final long cacheMaxBytes;
+    // 执行短命令的shell worker，null表示总是fork
+    private ShellPool shell = null;
+    // 回收dir布局下的输出父节点
+    private final OutputReclaimer reclaimer;
+
+    CommandExecutor(JAgent ja, Conf conf) {
+        this.ja = ja;
+        this.conf = conf;
+        int workers = Math.max(1, conf.getInt("exec.workers", 8));
+        this.capacity = workers + Math.max(0, conf.getInt("exec.queue.size", 64));
+        this.reject = conf.get("exec.saturation", "queue").equals("reject");
+        this.pool = new ThreadPoolExecutor(workers, workers, 60,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger seq = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ExecCmdWorker"
+                                + seq.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.pool.allowCoreThreadTimeOut(true);
+        this.chunkSize = conf.getInt("output.chunk.size", 0);
+        this.linger = conf.getInt("output.chunk.linger", 200);
+        this.minDeflate = conf.getInt("output.deflate.min", 512);
+        this.spillThreshold = conf.getInt("spill.threshold", 0);
+        this.directTimeout = conf.getInt("direct.connect.timeout", 2000);
+        this.windowStall = conf.getInt("output.window.stall", 60000);
+        this.cache = new CommandCache(conf.getInt("exec.cache.entries", 256));
+        this.reclaimer = new OutputReclaimer(ja, conf);
+        this.cacheMaxBytes = conf.getInt("exec.cache.max.bytes", 1048576);
+        if (conf.getInt("shell.pool.size", 0) > 0) {
+            shell = new ShellPool(conf);
+            ToolUtil.setShellPool(shell);
+        }
+        if (chunkSize > 0 && spillThreshold > 0) {
+            try {
+                spill = new SpillServer(conf);
+                spill.start();
+            } catch (IOException e) {
+                LOG.warn("start spill server failed, output always goes to zk",
+                        e);
+                spill = null;
+            }
+        }
+        this.timer = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "OutputFlusher");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * 提交一个命令
+     *
+     * @param id
+     *            命令序列号
+     * @param env
+     *            命令
+     * @return boolean false表示已经饱和并且命令应该留在input节点上
+     */
+    boolean submit(long id, CommandEnvelope env) {
+        while (pending.incrementAndGet() > capacity) {
+            if (!reject) {
+                // 先设置标志再释放名额，保证之后结束的命令能看到标志
+                deferred = true;
+                pending.decrementAndGet();
+                // 设置标志之前刚好结束的命令没有看到标志，这时已经有空位，重新占位
+                if (pending.get() < capacity)
+                    continue;
+                LOG.info("command " + id + " deferred, " + this);
+                return false;
+            }
+            pending.decrementAndGet();
+            rejected.incrementAndGet();
+            LOG.warn("command " + id + " rejected, " + this);
+            reject(id, env);
+            return true;
+        }
+        Task task = new Task(id, env);
+        tasks.put(id, task);
+        synchronized (earlyCancels) {
+            if (earlyCancels.remove(id) != null)
+                task.cancel();
+        }
+        pool.execute(task);
+        LOG.info("command " + id + " queued, priority=" + env.getPriority()
+                + ", " + this);
+        return true;
+    }
+
+    /**
+     * 取消命令
+     * 
+     * @param id
+     *            命令序列号
+     */
+    void cancel(long id) {
+        Task task = tasks.get(id);
+        if (task == null) {
+            synchronized (earlyCancels) {
+                earlyCancels.put(id, Boolean.TRUE);
+            }
+            // 检查期间命令可能刚好提交
+            task = tasks.get(id);
+            if (task == null) {
+                LOG.info("cancel command " + id + " before it arrives");
+                return;
+            }
+            synchronized (earlyCancels) {
+                earlyCancels.remove(id);
+            }
+        }
+        LOG.info("cancel command " + id);
+        task.cancel();
+    }
+
+    /**
+     * 饱和期间是否有命令留在input节点上，读取后清除标志
+     *
+     * @return boolean
+     */
+    boolean takeDeferred() {
+        boolean ret = deferred;
+        deferred = false;
+        return ret;
+    }
+
+    int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    long getCompleted() {
+        return completed.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    long getCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * 回收上一个进程留下的输出节点，agent启动时调用
+     *
+     * @param ip
+     */
+    void reclaimOutput(String ip) {
+        reclaimer.sweep(ip);
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+        timer.shutdownNow();
+        reclaimer.shutdown();
+        if (spill != null)
+            spill.shutdown();
+        if (shell != null) {
+            ToolUtil.setShellPool(null);
+            shell.shutdown();
+        }
+    }
+
+    /**
+     * 客户端声明了window时建立输出的流量控制窗口
+     * 
+     * @param id
+     * @param env
+     * @return OutputWindow null表示不控制
+     * @throws UnknownHostException
+     */
+    OutputWindow newWindow(long id, CommandEnvelope env)
+            throws UnknownHostException {
+        if (env.getWindow() <= 0)
+            return null;
+        return new OutputWindow(ja, ZKUtil.getAckPath(
+                ToolUtil.getPhysicalIp(), id, env.isOutputDir()), env
+                .getWindow(), windowStall);
+    }
+
+    /**
+     * 为命令选择输出方式
+     * 
+     * @param id
+     * @param env
+     * @param window
+     *            zk上输出的流量控制窗口，可以为null
+     * @return ResultWriter
+     * @throws UnknownHostException
+     * @throws KeeperException
+     */
+    ResultWriter newWriter(long id, CommandEnvelope env, OutputWindow window)
+            throws UnknownHostException, KeeperException {
+        ResultWriter writer = newZkWriter(id, env, window);
+        String callback = env.get(CommandEnvelope.CALLBACK);
+        if (callback != null)
+            return new DirectResultWriter(callback, directTimeout, writer);
+        return writer;
+    }
+
+    private ResultWriter newZkWriter(long id, CommandEnvelope env,
+            OutputWindow window) throws UnknownHostException, KeeperException {
+        String ip = ToolUtil.getPhysicalIp();
+        // 客户端提交后也会建立父节点，先到的一方建立
+        if (env.isOutputDir())
+            ZKUtil.creatAndFailSilent(ja.getZkw(), ZKUtil.getOutputRetPath(ip,
+                    id));
+        String nodePrefix = ZKUtil.getOutputNodePrefix(ip, id, env
+                .isOutputDir());
+        // 旧客户端会把分块输出帧当作输出行，只有客户端声明能够解析时才分块
+        if (chunkSize > 0 && env.isChunked()) {
+            // 只有客户端声明能够解码时才压缩
+            boolean deflate = CommandEnvelope.DEFLATE.equals(env
+                    .get(CommandEnvelope.CODEC));
+            boolean spillable = "1".equals(env.get(CommandEnvelope.SPILL));
+            return new ChunkedResultWriter(ja, nodePrefix, chunkSize,
+                    linger, deflate ? minDeflate : Integer.MAX_VALUE, timer,
+                    spillable ? spill : null, spillThreshold, window, env
+                            .isEndFrame());
+        }
+        return new LineResultWriter(ja, nodePrefix, window, env.isEndFrame());
+    }
+
+    @Override
+    public String toString() {
+        return "executor active=" + getActiveCount() + ", queued="
+                + getQueueDepth() + ", capacity=" + capacity + ", completed="
+                + completed.get() + ", rejected=" + rejected.get()
+                + ", cancelled=" + cancelled.get() + ", "
+                + cache;
+    }
+
+    private void reject(long id, CommandEnvelope env) {
+        try {
+            String ip = ToolUtil.getPhysicalIp();
+            if (env.isOutputDir())
+                ZKUtil.creatAndFailSilent(ja.getZkw(), ZKUtil
+                        .getOutputRetPath(ip, id));
+            String nodePrefix = ZKUtil.getOutputNodePrefix(ip, id, env
+                    .isOutputDir());
+            ZKUtil.creatEphemeralNodeNoWatch(ja.getZkw(), nodePrefix + "0",
+                    ToolUtil.toByte(REJECTED));
+            ZKUtil.creatEphemeralNodeNoWatch(ja.getZkw(), nodePrefix + "1",
+                    ToolUtil.toByte("EOF"));
+            reclaimer.schedule(ip, id, env.isOutputDir());
+        } catch (Exception e) {
+            ja.abort(CommandExecutor.class.getSimpleName(), e);
+        }
+    }
+
+    /**
+     * 排队中的命令，优先级高的先执行，同优先级按序列号
+     */
+    private class Task implements Runnable, Comparable<Task> {
+        private final long id;
+        private final CommandEnvelope env;
+        private volatile boolean cancelRequested = false;
+        // 正在执行的命令
+        private volatile ExecCmdTask exec = null;
+        // 输出的流量控制窗口，取消时唤醒等待确认的写出线程
+        private volatile OutputWindow window = null;
+
+        Task(long id, CommandEnvelope env) {
+            this.id = id;
+            this.env = env;
+        }
+
+        synchronized void cancel() {
+            if (cancelRequested)
+                return;
+            cancelRequested = true;
+            cancelled.incrementAndGet();
+            if (exec != null)
+                exec.cancel();
+            if (window != null)
+                window.release();
+        }
+
+        @Override
+        public void run() {
+            try {
+                synchronized (this) {
+                    window = newWindow(id, env);
+                    if (cancelRequested && window != null)
+                        window.release();
+                }
+                ResultWriter writer = newWriter(id, env, window);
+                if (cancelRequested) {
+                    writer.cancel();
+                    LOG.info("command " + id + " cancelled before start");
+                } else if (env.getCacheable() > 0) {
+                    runCached(writer);
+                } else {
+                    execute(writer);
+                }
+            } catch (InterruptedException e) {
+                LOG.info("command " + id + " interrupted");
+            } catch (Exception e) {
+                ja.abort(CommandExecutor.class.getSimpleName(), e);
+            } finally {
+                scheduleReclaim();
+                tasks.remove(id);
+                pending.decrementAndGet();
+                completed.incrementAndGet();
+                // 有空位了，重新读取留在input节点上的命令
+                if (takeDeferred())
+                    ja.drainInput();
+            }
+        }
+
+        // 客户端没有读完就退出时，剩余的输出节点在ttl之后由agent删除
+        private void scheduleReclaim() {
+            try {
+                reclaimer.schedule(ToolUtil.getPhysicalIp(), id, env
+                        .isOutputDir());
+            } catch (UnknownHostException e) {
+                LOG.warn("can not reclaim output of command " + id, e);
+            }
+        }
+
+        /**
+         * 先查缓存，没有命中时执行并记录输出
+         */
+        private void runCached(ResultWriter writer) throws Exception {
+            String key = env.getCmd();
+            CommandCache.Result r = cache.lookup(key);
+            if (r != null) {
+                LOG.info("command " + id + " answered from cache, " + cache);
+                if (cancelRequested)
+                    writer.cancel();
+                else
+                    r.replay(writer);
+                return;
+            }
+            RecordingResultWriter rec = new RecordingResultWriter(writer,
+                    env.getCacheable(), cacheMaxBytes);
+            try {
+                execute(rec);
+            } finally {
+                cache.complete(key, rec.getResult());
+            }
+        }
+
+        private void execute(ResultWriter writer) {
+            ExecCmdTask t = new ExecCmdTask(ja, id, env, writer, shell);
+            synchronized (this) {
+                exec = t;
+                if (cancelRequested)
+                    t.cancel();
+            }
+            t.run();
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            int p1 = env.getPriority();
+            int p2 = o.env.getPriority();
+            if (p1 != p2)
+                return p1 > p2 ? -1 : 1;
+            return id < o.id ? -1 : (id == o.id ? 0 : 1);
+        }
+    }
+}
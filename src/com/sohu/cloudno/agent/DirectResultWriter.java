@@ -0,0 +1,122 @@
+package com.sohu.cloudno.agent;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+
+import com.sohu.cloudno.comm.OutputFrame;
+import com.sohu.cloudno.comm.ShellPool;
+import com.sohu.cloudno.comm.ToolUtil;
+
+/**
+ * 通过客户端提供的直连地址推送输出，zk只用来传递命令
+ *
+ * <p>
+ * 连接建立后先发送一行token，之后每帧是4字节长度加上OutputFrame：每行输出一个CHUNK帧并立即发送，
+ * 最后一个END帧带有退出码。连接不上时全部输出交给fallback写到zk；
+ * 中途断开时，剩余的输出写到zk，前面加一行JA_WARN提示输出可能不完整。
+ */
+class DirectResultWriter implements ResultWriter {
+    private static final Logger LOG = Logger
+            .getLogger(DirectResultWriter.class);
+    private final String endpoint;
+    private final ResultWriter fallback;
+    private Socket socket = null;
+    private DataOutputStream out = null;
+
+    /**
+     * @param endpoint
+     *            客户端的直连地址host:port:token
+     * @param connectTimeout
+     * @param fallback
+     *            直连失败时使用的输出方式
+     */
+    DirectResultWriter(String endpoint, int connectTimeout,
+            ResultWriter fallback) {
+        this.endpoint = endpoint;
+        this.fallback = fallback;
+        String[] f = endpoint.split(":");
+        try {
+            if (f.length != 3)
+                throw new IOException("bad callback endpoint");
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(f[0], Integer.parseInt(f[1])),
+                    connectTimeout);
+            out = new DataOutputStream(new BufferedOutputStream(socket
+                    .getOutputStream()));
+            out.write(ToolUtil.toByte(f[2] + "\n"));
+            out.flush();
+            LOG.info("stream output to " + f[0] + ":" + f[1]);
+        } catch (Exception e) {
+            LOG.info("can not connect to " + endpoint
+                    + ", fallback to zk, " + e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    public void write(String line) throws KeeperException, InterruptedException {
+        if (out != null) {
+            byte[] b = ToolUtil.toByte(line + "\n");
+            if (send(OutputFrame.encode(OutputFrame.CHUNK, b, b.length)))
+                return;
+            fallback.write("JA_WARN: direct channel broken, some output may be missing");
+        }
+        fallback.write(line);
+    }
+
+    @Override
+    public void close(int exitValue) throws KeeperException,
+            InterruptedException {
+        if (out != null) {
+            if (send(OutputFrame.encodeEnd(exitValue))) {
+                close();
+                return;
+            }
+            fallback.write("JA_WARN: direct channel broken, some output may be missing");
+        }
+        fallback.close(exitValue);
+    }
+
+    @Override
+    public void cancel() throws KeeperException, InterruptedException {
+        if (out != null) {
+            byte[] line = ToolUtil.toByte(CommandExecutor.CANCELLED + "\n");
+            if (send(OutputFrame.encode(OutputFrame.CHUNK, line, line.length))
+                    && send(OutputFrame.encodeEnd(ShellPool.KILLED))) {
+                close();
+                return;
+            }
+        }
+        fallback.cancel();
+    }
+
+    private boolean send(byte[] frame) {
+        try {
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            LOG.warn("direct channel to " + endpoint + " broken", e);
+            close();
+            return false;
+        }
+    }
+
+    private void close() {
+        out = null;
+        try {
+            if (socket != null)
+                socket.close();
+        } catch (IOException e) {
+        }
+        socket = null;
+    }
+}
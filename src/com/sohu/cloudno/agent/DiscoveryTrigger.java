@@ -0,0 +1,281 @@
+package com.sohu.cloudno.agent;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.sohu.cloudno.comm.Conf;
+
+/**
+ * 本机数据库实例变化的触发源，发现变化时立即唤醒CheckDBThread，固定间隔的轮询只作为兜底
+ *
+ * <p>
+ * discovery.trigger.paths配置的文件和目录(pid文件、keepalived状态文件、数据库配置目录)
+ * 用WatchService监听：目录监听它自己，包括下一级文件的建立、删除和修改；文件监听所在的目录，
+ * 只关心这个文件名的事件。还不存在的路径每隔discovery.trigger.interval毫秒重新检查，
+ * 出现时也算一次变化；所在目录被删除后同样重新注册。
+ *
+ * <p>
+ * /proc不能监听，每隔discovery.trigger.interval毫秒扫描一次，
+ * cmdline包含discovery.trigger.procs关键字的进程启动或者退出时触发。
+ * 新进程的cmdline只读一次，所以扫描本身的开销很小。
+ */
+public class DiscoveryTrigger extends BaseThread {
+    private static final Logger LOG = Logger.getLogger(DiscoveryTrigger.class);
+    // 没有配置间隔时重试注册的间隔，单位milliseconds
+    private static final long RETRY = 1000;
+    private final CheckDBThread checkDBThread;
+    private final long interval;
+    private final String procRoot;
+    private final String[] paths;
+    private final String[] procs;
+    private WatchService watcher = null;
+    // 注册的目录，value是关心的文件名，null表示目录下的所有事件
+    private final Map<Path, Set<Path>> watched = new HashMap<Path, Set<Path>>();
+    private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    // 还没有注册成功的路径
+    private final Set<String> pending = new LinkedHashSet<String>();
+    // 文件监听的基线是否已经建立
+    private boolean registered = false;
+    // 已经检查过cmdline的pid，value表示是否是关注的进程
+    private final Map<String, Boolean> pids = new HashMap<String, Boolean>();
+    // 进程基线是否已经建立
+    private boolean procScanned = false;
+
+    DiscoveryTrigger(JAgent ja, Conf conf, String desc,
+            CheckDBThread checkDBThread) {
+        super(ja, conf, desc);
+        this.checkDBThread = checkDBThread;
+        this.interval = conf.getInt("discovery.trigger.interval", 0);
+        this.procRoot = conf.get("discovery.proc.root", "/proc");
+        this.paths = split(conf.get("discovery.trigger.paths", ""));
+        this.procs = split(conf.get("discovery.trigger.procs", ""));
+        setDaemon(true);
+    }
+
+    /**
+     * 是否配置了触发源
+     *
+     * @return boolean
+     */
+    boolean isEnabled() {
+        return paths.length > 0 || (interval > 0 && procs.length > 0);
+    }
+
+    @Override
+    public void run() {
+        setThreadName();
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            LOG.warn(desc + " can not watch files, only scan processes", e);
+        }
+        if (watcher != null) {
+            for (String path : paths) {
+                pending.add(path);
+            }
+            // 第一次注册只建立基线
+            register();
+            registered = true;
+        }
+        scanProcs();
+        long period = interval > 0 ? interval : RETRY;
+        long nextScan = System.currentTimeMillis() + period;
+        try {
+            for (;;) {
+                boolean changed = false;
+                long left = Math.max(1, nextScan - System.currentTimeMillis());
+                if (watcher != null) {
+                    WatchKey key = watcher.poll(left, TimeUnit.MILLISECONDS);
+                    if (key != null)
+                        changed = handle(key);
+                } else {
+                    Thread.sleep(left);
+                }
+                if (System.currentTimeMillis() >= nextScan) {
+                    if (watcher != null)
+                        changed = register() || changed;
+                    if (interval > 0)
+                        changed = scanProcs() || changed;
+                    nextScan = System.currentTimeMillis() + period;
+                }
+                if (changed)
+                    checkDBThread.wakeup();
+            }
+        } catch (InterruptedException e) {
+            LOG.info(desc + " interrupted, exit");
+        } finally {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 注册还没有注册成功的路径
+     *
+     * @return boolean true表示有路径新出现
+     */
+    private boolean register() {
+        boolean changed = false;
+        for (Iterator<String> i = pending.iterator(); i.hasNext();) {
+            String path = i.next();
+            Path p = Paths.get(path);
+            Path dir;
+            Path name;
+            if (Files.isDirectory(p)) {
+                dir = p;
+                name = null;
+            } else {
+                dir = p.getParent();
+                name = p.getFileName();
+                if (dir == null || !Files.isDirectory(dir))
+                    continue;
+            }
+            try {
+                watch(dir, name);
+            } catch (IOException e) {
+                LOG.warn(desc + " can not watch \"" + path + "\"", e);
+                continue;
+            }
+            // 还不存在的路径留在pending中，出现时是目录的话改为监听它自己
+            if (!Files.exists(p))
+                continue;
+            i.remove();
+            // 基线建立之后才出现的路径
+            if (registered) {
+                LOG.info("trigger discovery, \"" + path + "\" appeared");
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void watch(Path dir, Path name) throws IOException {
+        if (!watched.containsKey(dir)) {
+            WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE,
+                    ENTRY_MODIFY);
+            keys.put(key, dir);
+            watched.put(dir, name == null ? null : new HashSet<Path>());
+        }
+        Set<Path> names = watched.get(dir);
+        if (name == null)
+            watched.put(dir, null);
+        else if (names != null)
+            names.add(name);
+    }
+
+    /**
+     * 处理一个目录上的事件
+     *
+     * @param key
+     * @return boolean true表示关心的路径有变化
+     */
+    private boolean handle(WatchKey key) {
+        Path dir = keys.get(key);
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null)
+                continue;
+            Set<Path> names = watched.get(dir);
+            Object context = event.context();
+            if (event.kind() == OVERFLOW || names == null
+                    || names.contains(context)) {
+                LOG.info("trigger discovery, \"" + dir
+                        + (context == null ? "" : "/" + context) + "\" "
+                        + event.kind().name());
+                changed = true;
+            }
+        }
+        if (!key.reset() && dir != null) {
+            // 目录被删除，之后重新注册其中配置的路径
+            LOG.info("trigger discovery, \"" + dir + "\" removed");
+            keys.remove(key);
+            Set<Path> names = watched.remove(dir);
+            if (names == null) {
+                pending.add(dir.toString());
+            } else {
+                for (Path name : names) {
+                    pending.add(dir.resolve(name).toString());
+                }
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * 检查关注进程的启动和退出
+     *
+     * @return boolean true表示有变化
+     */
+    private boolean scanProcs() {
+        if (procs.length == 0)
+            return false;
+        boolean changed = false;
+        Set<String> alive = new HashSet<String>(ProcFs.listPids(procRoot));
+        for (String pid : alive) {
+            if (!pids.containsKey(pid)) {
+                boolean watched = isWatched(pid);
+                pids.put(pid, watched);
+                if (watched && procScanned) {
+                    LOG.info("trigger discovery, process " + pid + " started");
+                    changed = true;
+                }
+            }
+        }
+        for (Iterator<Map.Entry<String, Boolean>> i = pids.entrySet()
+                .iterator(); i.hasNext();) {
+            Map.Entry<String, Boolean> e = i.next();
+            if (!alive.contains(e.getKey())) {
+                if (e.getValue()) {
+                    LOG.info("trigger discovery, process " + e.getKey()
+                            + " exited");
+                    changed = true;
+                }
+                i.remove();
+            }
+        }
+        procScanned = true;
+        return changed;
+    }
+
+    private boolean isWatched(String pid) {
+        String cmdline = ProcFs.readCmdline(procRoot, pid);
+        if (cmdline == null)
+            return false;
+        for (String proc : procs) {
+            if (cmdline.indexOf(proc) != -1)
+                return true;
+        }
+        return false;
+    }
+
+    private static String[] split(String value) {
+        if (value == null || value.trim().equals(""))
+            return new String[0];
+        return value.trim().split("\\s*,\\s*");
+    }
+}
@@ -0,0 +1,193 @@
+package com.sohu.cloudno.agent;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import com.sohu.cloudno.comm.ZooKeeperListener;
+import com.sohu.cloudno.comm.ZooKeeperWatcher;
+
+/**
+ * 检查agent发布到zk的group和instance节点是否被外部删除或者修改
+ *
+ * <p>
+ * 节点写入后通过getData设置watch并记录mzxid，节点被删除或者数据变化时watch触发，
+ * 重新读取后和期望的数据比较，不一致的节点记为漂移并唤醒CheckDBThread，只重写这些节点。
+ * watch可能在连接异常时丢失，所以还定期用exists批量比较mzxid，只有mzxid变化的节点才读数据。
+ *
+ * <p>
+ * group节点由同组的所有agent共享，只检查是否存在；instance节点还检查数据和ephemeralOwner。
+ * 回调在ZooKeeper的事件线程中执行，不能阻塞。
+ */
+class DriftDetector extends ZooKeeperListener implements DataCallback,
+        StatCallback {
+    private static final Logger LOG = Logger.getLogger(DriftDetector.class);
+    private final CheckDBThread checkDBThread;
+    // 正在检查的节点和期望的状态
+    private final Map<String, Expect> expected = new ConcurrentHashMap<String, Expect>();
+    // 已经漂移、等待CheckDBThread重写的节点
+    private final Set<String> drifted = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    DriftDetector(ZooKeeperWatcher zkw, CheckDBThread checkDBThread) {
+        super(zkw);
+        this.checkDBThread = checkDBThread;
+    }
+
+    /**
+     * 记录节点的期望数据，不读zk，用于写入之前，避免自己的写操作被当作漂移
+     *
+     * @param nodes
+     *            节点路径和数据，数据为null表示只检查节点是否存在
+     * @param ephemeral
+     *            是否是本session建立的临时节点
+     */
+    void expect(Map<String, byte[]> nodes, boolean ephemeral) {
+        for (Entry<String, byte[]> node : nodes.entrySet()) {
+            expected.put(node.getKey(), new Expect(node.getValue(), ephemeral));
+        }
+    }
+
+    /**
+     * 开始检查已经写入的节点：记录期望数据，设置watch并读取当前的mzxid
+     *
+     * @param nodes
+     *            节点路径和数据，数据为null表示只检查节点是否存在
+     * @param ephemeral
+     *            是否是本session建立的临时节点
+     */
+    void track(Map<String, byte[]> nodes, boolean ephemeral) {
+        expect(nodes, ephemeral);
+        ZooKeeper zk = zkw.getZooKeeper();
+        for (String path : nodes.keySet()) {
+            zk.getData(path, true, this, null);
+        }
+    }
+
+    /**
+     * 停止检查节点，在agent自己删除节点之前调用
+     *
+     * @param nodes
+     */
+    void untrack(Collection<String> nodes) {
+        for (String node : nodes) {
+            expected.remove(node);
+            drifted.remove(node);
+        }
+    }
+
+    /**
+     * 取出所有漂移的节点，这些节点同时停止检查，重写之后再重新track
+     *
+     * @return Set
+     */
+    Set<String> drain() {
+        Set<String> ret = new HashSet<String>();
+        for (String node : drifted) {
+            ret.add(node);
+        }
+        untrack(ret);
+        return ret;
+    }
+
+    /**
+     * 批量比较所有节点的mzxid，作为watch丢失时的兜底
+     */
+    void verify() {
+        ZooKeeper zk = zkw.getZooKeeper();
+        for (String path : expected.keySet()) {
+            zk.exists(path, false, this, null);
+        }
+        LOG.info("verify " + expected.size() + " znodes");
+    }
+
+    @Override
+    public void connected(long sessionId) {
+        // 同一个session断线重连，断线期间的变化用mzxid补查一次
+        verify();
+    }
+
+    @Override
+    public void nodeDeleted(String path) {
+        if (expected.containsKey(path))
+            drift(path, "deleted");
+    }
+
+    @Override
+    public void nodeDataChanged(String path) {
+        // 自己的setData也会触发，重新读取后比较数据
+        if (expected.containsKey(path))
+            zkw.getZooKeeper().getData(path, true, this, null);
+    }
+
+    // getData的回调
+    @Override
+    public void processResult(int rc, String path, Object ctx, byte[] data,
+            Stat stat) {
+        Expect e = expected.get(path);
+        if (e == null)
+            return;
+        if (rc == Code.NONODE.intValue()) {
+            drift(path, "deleted");
+        } else if (rc == Code.OK.intValue()) {
+            if (e.ephemeral
+                    && stat.getEphemeralOwner() != zkw.getZooKeeper()
+                            .getSessionId()) {
+                drift(path, "owned by session 0x"
+                        + Long.toHexString(stat.getEphemeralOwner()));
+            } else if (e.data != null && !Arrays.equals(e.data, data)) {
+                drift(path, "data changed");
+            } else {
+                e.mzxid = stat.getMzxid();
+            }
+        }
+        // 连接异常等其他错误留给下一次verify
+    }
+
+    // exists的回调
+    @Override
+    public void processResult(int rc, String path, Object ctx, Stat stat) {
+        Expect e = expected.get(path);
+        if (e == null)
+            return;
+        if (rc == Code.NONODE.intValue()) {
+            drift(path, "deleted");
+        } else if (rc == Code.OK.intValue() && stat.getMzxid() != e.mzxid) {
+            // mzxid变化才需要读数据比较，同时补上可能丢失的watch
+            zkw.getZooKeeper().getData(path, true, this, null);
+        }
+    }
+
+    private void drift(String path, String why) {
+        LOG.warn("znode \"" + path + "\" drifted, " + why);
+        drifted.add(path);
+        checkDBThread.wakeup();
+    }
+
+    /**
+     * 节点的期望状态
+     */
+    private static class Expect {
+        private final byte[] data;
+        private final boolean ephemeral;
+        // 最近一次确认一致时的mzxid，-1表示还没有确认
+        private volatile long mzxid = -1;
+
+        Expect(byte[] data, boolean ephemeral) {
+            this.data = data;
+            this.ephemeral = ephemeral;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.sohu.cloudno.agent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecuteResultHandler;
+import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.commons.exec.PumpStreamHandler;
+import org.apache.commons.exec.environment.EnvironmentUtils;
+import org.apache.log4j.Logger;
+
+import com.sohu.cloudno.comm.Abortable;
+import com.sohu.cloudno.comm.CommandEnvelope;
+import com.sohu.cloudno.comm.ShellPool;
+import com.sohu.cloudno.comm.ToolUtil;
+
+/**
+ * 执行一个远程命令，由CommandExecutor的工作线程调用run()，不单独建立线程，线程名由线程池决定
+ */
+public class ExecCmdTask implements Runnable, Abortable {
+    private static final Logger LOG = Logger.getLogger(ExecCmdTask.class);
+    // 命令进程和它的子进程都带有这个环境变量，取消时据此kill整个进程树
+    static final String CMD_ID_ENV = "JA_CMD_ID";
+    private final JAgent ja;
+    private long id;
+    private String cmd;
+    private int timeout;
+    private ResultWriter writer;
+    // 客户端允许时短命令交给shell worker执行，null表示总是fork
+    private ShellPool shell;
+    // 在shell worker上执行时用来kill命令
+    private final ShellPool.Job job = new ShellPool.Job();
+    private volatile boolean cancelled = false;
+
+    ExecCmdTask(JAgent ja, long id, CommandEnvelope env, ResultWriter writer,
+            ShellPool shell) {
+        this.ja = ja;
+        this.id = id;
+        this.cmd = env.getCmd();
+        this.timeout = env.getTimeout();
+        this.writer = writer;
+        this.shell = env.isPooled() ? shell : null;
+    }
+
+    /**
+     * 取消命令：kill进程树，之后的输出不再写出，结束时写CANCELLED
+     */
+    void cancel() {
+        cancelled = true;
+        if (shell != null)
+            job.kill();
+        ToolUtil.killByEnv(CMD_ID_ENV, String.valueOf(id));
+    }
+
+    /**
+     * JA执行中控机发起的远程命令
+     * 
+     */
+    @Override
+    public void run() {
+        LOG.info("Start command " + id + ": " + cmd);
+        try {
+            if (cancelled) {
+                writer.cancel();
+                LOG.info("Command " + id + " cancelled before start");
+                return;
+            }
+            if (shell != null && shell.accept(timeout)) {
+                runPooled();
+                return;
+            }
+            // 执行中控发出的相应命令或脚本
+            PipedOutputStream stdout = new PipedOutputStream();
+            PumpStreamHandler psh = new PumpStreamHandler(stdout);
+            CommandLine cl = CommandLine.parse(cmd);
+            DefaultExecutor exec = new DefaultExecutor();
+            exec.setStreamHandler(psh);
+
+            ExecuteWatchdog watchdog = null;
+            if (0 < timeout) {
+                watchdog = new ExecuteWatchdog(timeout);
+                exec.setWatchdog(watchdog);
+            }
+
+            DefaultExecuteResultHandler derh = new DefaultExecuteResultHandler();
+            Map<?, ?> env = EnvironmentUtils.getProcEnvironment();
+            EnvironmentUtils.addVariableToEnvironment(env, CMD_ID_ENV + "="
+                    + id);
+            exec.execute(cl, env, derh);
+            // 启动期间到达的取消请求没有kill到新进程
+            if (cancelled)
+                cancel();
+
+            BufferedReader br = new BufferedReader(new InputStreamReader(
+                    new PipedInputStream(stdout)));
+
+            // 按照执行结果写入output节点
+            try {
+                String line = null;
+                while (null != (line = br.readLine())) {
+                    if (!cancelled)
+                        writer.write(line);
+                }
+                // 捕获管道关闭引起的IO异常
+            } catch (IOException e) {
+                br.close();
+                stdout.close();
+            }
+
+            // 写入命令执行完结信息
+            derh.waitFor();
+            int exitValue = derh.getException() != null ? derh.getException()
+                    .getExitValue() : derh.getExitValue();
+            if (cancelled) {
+                writer.cancel();
+                LOG.info("Command " + id + " cancelled: " + cmd);
+                return;
+            }
+            writer.close(exitValue);
+
+            LOG.info("Execute command " + id + " success: " + cmd
+                    + ", exit " + exitValue);
+        } catch (Exception e) {
+            abort(ExecCmdTask.class.getSimpleName(), e);
+        }
+    }
+
+    /**
+     * 用shell worker执行，输出直接写到output
+     */
+    private void runPooled() throws Exception {
+        int exitValue;
+        try {
+            exitValue = shell.run(cmd, Collections.singletonMap(CMD_ID_ENV,
+                    String.valueOf(id)), timeout, new ShellPool.LineHandler() {
+                @Override
+                public void line(String line) throws Exception {
+                    if (!cancelled)
+                        writer.write(line);
+                }
+            }, job);
+        } catch (TimeoutException e) {
+            exitValue = ShellPool.KILLED;
+        }
+        if (cancelled) {
+            writer.cancel();
+            LOG.info("Command " + id + " cancelled: " + cmd);
+            return;
+        }
+        writer.close(exitValue);
+        LOG.info("Execute command " + id + " in shell worker: " + cmd
+                + ", exit " + exitValue);
+    }
+
+    @Override
+    public void abort(String why, Throwable e) {
+        ja.abort(why, e);
+    }
+}
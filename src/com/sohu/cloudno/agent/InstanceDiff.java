@@ -0,0 +1,59 @@
+package com.sohu.cloudno.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * 已发布的实例和本轮探测到的实例之间的差异，以inst节点路径为key比较
+ */
+class InstanceDiff {
+    private final List<InstanceRecord> added = new ArrayList<InstanceRecord>();
+    private final List<InstanceRecord> changed = new ArrayList<InstanceRecord>();
+    private final List<String> removed = new ArrayList<String>();
+
+    /**
+     * @param published
+     *            已经写到zk上的实例
+     * @param detected
+     *            本轮探测到的实例
+     */
+    InstanceDiff(Map<String, InstanceRecord> published,
+            Map<String, InstanceRecord> detected) {
+        for (Entry<String, InstanceRecord> e : detected.entrySet()) {
+            InstanceRecord old = published.get(e.getKey());
+            if (old == null) {
+                added.add(e.getValue());
+            } else if (!old.equals(e.getValue())) {
+                changed.add(e.getValue());
+            }
+        }
+        for (String inst : published.keySet()) {
+            if (!detected.containsKey(inst))
+                removed.add(inst);
+        }
+    }
+
+    List<InstanceRecord> getAdded() {
+        return added;
+    }
+
+    List<InstanceRecord> getChanged() {
+        return changed;
+    }
+
+    List<String> getRemoved() {
+        return removed;
+    }
+
+    boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "added=" + added.size() + ", changed=" + changed.size()
+                + ", removed=" + removed.size();
+    }
+}
@@ -0,0 +1,17 @@
+package com.sohu.cloudno.agent;
+
+/**
+ * 本机数据库实例的探测方式
+ *
+ * <p>
+ * 实现类返回和cp_db_relation.sh相同格式的输出：以"JA_RESULT="开头，
+ * 每行一条is_ha:type:GRP:grp:inst:data记录，或者是单独的Y/R(没有实例运行)、E(脚本出错)。
+ */
+interface InstanceDiscovery {
+    /**
+     * 探测本机的数据库实例
+     *
+     * @return String null表示探测失败或者超时
+     */
+    String discover();
+}
@@ -0,0 +1,180 @@
+package com.sohu.cloudno.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sohu.cloudno.comm.Constant;
+import com.sohu.cloudno.comm.ZKUtil;
+
+/**
+ * cp_db_relation.sh输出的一条数据库实例记录，格式为
+ * is_ha:type:GRP:grp:inst:data
+ *
+ * <p>
+ * 两条记录的六个字段都相同时认为是同一个实例状态，zk上的节点数据由CheckDBThread
+ * 根据记录生成后通过{@link #setData}保存在记录上。
+ */
+class InstanceRecord {
+    private static final String ROOT = Constant.ROOT + Constant.INSTANCE;
+    private static final int FIELDS = 6;
+
+    private final String isHa;
+    private final String type;
+    private final String grpName;
+    private final String grpId;
+    private final String instId;
+    private final String info;
+    // 节点路径
+    private final String grpRootPath;
+    private final String grpPath;
+    private final String instPath;
+    // 写到inst节点上的数据
+    private byte[] data;
+
+    InstanceRecord(String isHa, String type, String grpName, String grpId,
+            String instId, String info) {
+        this.isHa = isHa;
+        this.type = type;
+        this.grpName = grpName;
+        this.grpId = grpId;
+        this.instId = instId;
+        this.info = info;
+        this.grpRootPath = ZKUtil.joinZNode(ROOT, grpName);
+        this.grpPath = ZKUtil.joinZNode(grpRootPath, "grp@" + grpId);
+        this.instPath = ZKUtil.joinZNode(grpPath, "inst@" + instId);
+    }
+
+    /**
+     * 逐行解析脚本输出，和split(":")的行为一致：先去掉行尾的空字段，剩下的字段个数不是6的行被忽略
+     *
+     * @param infs
+     *            去掉"JA_RESULT="之后的脚本输出
+     * @return List 解析出的实例记录
+     */
+    static List<InstanceRecord> parse(String infs) {
+        List<InstanceRecord> list = new ArrayList<InstanceRecord>();
+        String[] f = new String[FIELDS];
+        int len = infs.length();
+        int start = 0;
+        while (start < len) {
+            int end = infs.indexOf('\n', start);
+            if (end < 0)
+                end = len;
+
+            // split(":")丢弃末尾的空字段
+            int last = end;
+            while (last > start && infs.charAt(last - 1) == ':')
+                last--;
+            int n = 0;
+            int from = start;
+            for (int i = start; i < last && n < FIELDS; i++) {
+                if (infs.charAt(i) == ':') {
+                    f[n++] = infs.substring(from, i);
+                    from = i + 1;
+                }
+            }
+            if (n == FIELDS - 1 && from < last) {
+                f[n] = infs.substring(from, last);
+                list.add(new InstanceRecord(f[0], f[1], f[2], f[3], f[4],
+                        f[5]));
+            }
+            start = end + 1;
+        }
+        return list;
+    }
+
+    /**
+     * 根据实例类型得到grp节点的数据
+     *
+     * @return String "W"表示写组，"R"表示读组，null表示不认识的类型
+     */
+    String getGrpData() {
+        if (type.equalsIgnoreCase("mysql") || type.equalsIgnoreCase("oracle")
+                || type.equalsIgnoreCase("mongodb")
+                || type.equalsIgnoreCase("PXCW")) {
+            return "W";
+        } else if (type.equalsIgnoreCase("lvs")
+                || type.equalsIgnoreCase("proxy")
+                || type.equalsIgnoreCase("PXCR")) {
+            return "R";
+        }
+        return null;
+    }
+
+    String getIsHa() {
+        return isHa;
+    }
+
+    /**
+     * 其他字段相同、is_ha不同的记录
+     *
+     * @param isHa
+     * @return InstanceRecord
+     */
+    InstanceRecord withIsHa(String isHa) {
+        return new InstanceRecord(isHa, type, grpName, grpId, instId, info);
+    }
+
+    String getType() {
+        return type;
+    }
+
+    String getInfo() {
+        return info;
+    }
+
+    /**
+     * inst字段以"_端口"结尾
+     *
+     * @return int 实例端口，-1表示inst字段里没有端口
+     */
+    int getPort() {
+        try {
+            return Integer.parseInt(instId.substring(instId.lastIndexOf('_') + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    String getGrpRootPath() {
+        return grpRootPath;
+    }
+
+    String getGrpPath() {
+        return grpPath;
+    }
+
+    String getInstPath() {
+        return instPath;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    void setData(byte[] data) {
+        this.data = data;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof InstanceRecord))
+            return false;
+        InstanceRecord r = (InstanceRecord) o;
+        return instPath.equals(r.instPath) && isHa.equals(r.isHa)
+                && type.equals(r.type) && info.equals(r.info);
+    }
+
+    @Override
+    public int hashCode() {
+        return instPath.hashCode() * 31 + info.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return isHa + ":" + type + ":" + grpName + ":" + grpId + ":" + instId
+                + ":" + info;
+    }
+}
@@ -0,0 +1,151 @@
+package com.sohu.cloudno.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.sohu.cloudno.comm.ToolUtil;
+
+/**
+ * agent最近一次发布到zk的group和instance节点的本地快照
+ *
+ * <p>
+ * 文件第一行是其余内容的CRC32校验和，之后每行一个节点：
+ * <ul>
+ * <li>G\t路径：已经建立的group节点</li>
+ * <li>I\t实例记录\t节点数据：已经建立的instance节点</li>
+ * </ul>
+ * 写文件时先写临时文件再rename，校验失败的快照被忽略。
+ */
+class InstanceSnapshot {
+    private static final Logger LOG = Logger.getLogger(InstanceSnapshot.class);
+    private static final String CRC = "crc32=";
+
+    private final String fileName;
+    private final Set<String> grps = new HashSet<String>();
+    private final Map<String, InstanceRecord> insts = new HashMap<String, InstanceRecord>();
+
+    InstanceSnapshot(String fileName) {
+        this.fileName = fileName;
+    }
+
+    Set<String> getGrps() {
+        return grps;
+    }
+
+    Map<String, InstanceRecord> getInsts() {
+        return insts;
+    }
+
+    /**
+     * 读取快照文件
+     *
+     * @return boolean false表示文件不存在或者已经损坏
+     */
+    boolean load() {
+        grps.clear();
+        insts.clear();
+        File f = new File(fileName);
+        if (!f.exists())
+            return false;
+
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new InputStreamReader(new FileInputStream(
+                    f), "UTF-8"));
+            String header = br.readLine();
+            StringBuilder body = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null)
+                body.append(line).append('\n');
+
+            if (header == null || !header.startsWith(CRC)
+                    || !header.substring(CRC.length()).equals(
+                            crc(body.toString()))) {
+                LOG.warn("snapshot " + fileName + " is corrupt, ignore it");
+                return false;
+            }
+
+            for (String l : body.toString().split("\n")) {
+                String[] fields = l.split("\t");
+                if (fields.length == 2 && fields[0].equals("G")) {
+                    grps.add(fields[1]);
+                } else if (fields.length == 3 && fields[0].equals("I")) {
+                    List<InstanceRecord> r = InstanceRecord.parse(fields[1]);
+                    if (r.size() == 1) {
+                        r.get(0).setData(ToolUtil.toByte(fields[2]));
+                        insts.put(r.get(0).getInstPath(), r.get(0));
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warn("read snapshot " + fileName + " error", e);
+            return false;
+        } finally {
+            try {
+                if (br != null)
+                    br.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * 保存快照文件
+     *
+     * @param grps
+     *            已经建立的group节点
+     * @param insts
+     *            已经建立的instance节点
+     */
+    void save(Set<String> grps, Map<String, InstanceRecord> insts) {
+        StringBuilder body = new StringBuilder();
+        for (String grp : grps) {
+            body.append("G\t").append(grp).append('\n');
+        }
+        for (InstanceRecord r : insts.values()) {
+            body.append("I\t").append(r).append('\t')
+                    .append(ToolUtil.toStr(r.getData())).append('\n');
+        }
+
+        File tmp = new File(fileName + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tmp);
+            os.write(ToolUtil.toByte(CRC + crc(body.toString()) + "\n"));
+            os.write(ToolUtil.toByte(body.toString()));
+            os.close();
+            os = null;
+            if (!tmp.renameTo(new File(fileName)))
+                LOG.warn("rename snapshot " + tmp + " to " + fileName
+                        + " failed");
+        } catch (IOException e) {
+            LOG.warn("write snapshot " + fileName + " error", e);
+        } finally {
+            try {
+                if (os != null)
+                    os.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static String crc(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(ToolUtil.toByte(body));
+        return Long.toHexString(crc.getValue());
+    }
+}
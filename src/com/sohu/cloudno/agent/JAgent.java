@@ -1,13 +1,15 @@
 package com.sohu.cloudno.agent;
 
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
 
 import com.sohu.cloudno.comm.Abortable;
 import com.sohu.cloudno.comm.Conf;
+import com.sohu.cloudno.comm.Constant;
 import com.sohu.cloudno.comm.ToolUtil;
 import com.sohu.cloudno.comm.ZKUtil;
 import com.sohu.cloudno.comm.ZooKeeperWatcher;
@@ -29,14 +31,22 @@ public class JAgent implements Abortable {
     private ZooKeeperWatcher zkw = null;
     // 检查Lvs状态的线程
     private CheckDBThread checkDBThread = null;
+    // 本机的远程控制节点路径
+    private String ipPath = null;
     // 远程调用命令节点路径
     private String inputPath = null;
-    // 子线程异常信息汇总，用于主线程处理使用
-    private List<String> threadThrowable = null;
+    // 远程命令的执行服务
+    private CommandExecutor executor = null;
+    // 当前zk连接上的远程命令监听器
+    private RemoteCommandHandle inputHandle = null;
+    // 重启时交接zk session
+    private SessionHandoff handoff = null;
+    // 子线程异常信息汇总，用于主线程处理使用，主线程在队列上等待，收到后立即处理
+    private BlockingQueue<String> threadThrowable = null;
 
     JAgent() {
         conf = new Conf();
-        threadThrowable = new CopyOnWriteArrayList<String>();
+        threadThrowable = new LinkedBlockingQueue<String>();
     }
 
     public synchronized ZooKeeperWatcher getZkw() {
@@ -74,13 +84,16 @@ public class JAgent implements Abortable {
             return false;
         }
 
-        zkw = new ZooKeeperWatcher(conf, "JAgent", ja);
+        handoff = new SessionHandoff(conf);
+        zkw = handoff.connect(conf, "JAgent", ja);
         LOG.debug("zkw is=" + zkw);
         LOG.debug("JAgentInit connect zkserver sucessfully");
 
         // 初始化zk控制树信息
         String ip = ToolUtil.getPhysicalIp();
-        ZKUtil.creatAndFailSilent(zkw, ZKUtil.getIpPath(ip));
+        ipPath = ZKUtil.getIpPath(ip);
+        ZKUtil.creatAndFailSilent(zkw, ipPath);
+        publishSession();
 
         inputPath = ZKUtil.getInputPath(ip);
         ZKUtil.creatAndFailSilent(zkw, inputPath);
@@ -88,12 +101,21 @@ public class JAgent implements Abortable {
 
         ZKUtil.creatAndFailSilent(zkw, ZKUtil.getOutputPath(ip));
 
+        executor = new CommandExecutor(ja, conf);
+        // 上一个进程的命令已经随input一起清除，它们留下的输出节点不会再有人删除
+        executor.reclaimOutput(ip);
         registerInputListener();
 
         // 启动监控数据库子线程
         checkDBThread = new CheckDBThread(ja, conf, "CheckDBThread");
         checkDBThread.start();
 
+        // 启动实例变化的事件触发源，发现变化立即唤醒监控数据库子线程
+        DiscoveryTrigger trigger = new DiscoveryTrigger(ja, conf,
+                "DiscoveryTrigger", checkDBThread);
+        if (trigger.isEnabled())
+            trigger.start();
+
         return true;
     }
 
@@ -101,34 +123,50 @@ public class JAgent implements Abortable {
         LOG.debug("JAgent is running....");
         long MONITOR_RETRY_TIMES = Long.parseLong(conf
                 .get("monitor_retry_times"));
-        for (;; ToolUtil.sleep(MONITOR_RETRY_TIMES)) {
+        for (;;) {
             // LOG.info("Thread num: " + Thread.activeCount());
-            if (threadThrowable.isEmpty())
+            String t;
+            try {
+                t = threadThrowable.poll(MONITOR_RETRY_TIMES,
+                        TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                LOG.info("JAgent interrupted, exit");
+                return;
+            }
+            if (t == null || !t.equals("SessionExpiredException"))
                 continue;
 
-            if (threadThrowable.get(0).equals("SessionExpiredException")) {
+            try {
+                // 再进行一次尝试，不行就catch
+                ZKUtil.checkExists(zkw, "/");
+            } catch (Exception e) {
+                // 重建zkw对象、注册监听器、重置checkDBThread
                 try {
-                    // 再进行一次尝试，不行就catch
-                    ZKUtil.checkExists(zkw, "/");
-                } catch (Exception e) {
-                    // 重建zkw对象、注册监听器、重置checkDBThread
-                    try {
-                        if (zkw != null)
-                            zkw.close();
-
-                        zkw = new ZooKeeperWatcher(conf, "JAgent", ja);
-                        registerInputListener();
-                        checkDBThread.reset();
-                        LOG.info("CheckDBThread" + checkDBThread.getId()
-                                + " reset");
-                    } catch (Exception e1) {
-                    }
+                    if (zkw != null)
+                        zkw.close();
+
+                    setZkw(new ZooKeeperWatcher(conf, "JAgent", ja));
+                    handoff.save(zkw);
+                    publishSession();
+                    registerInputListener();
+                    // 新session已经SyncConnected，立即重新发布实例节点
+                    checkDBThread.reset();
+                    LOG.info("CheckDBThread" + checkDBThread.getId()
+                            + " reset");
+                } catch (Exception e1) {
+                    // zk暂时不可用，间隔一段时间后重试
+                    LOG.warn("recreate zk session failed, retry later", e1);
+                    ToolUtil.sleep(MONITOR_RETRY_TIMES);
+                    threadThrowable.offer(t);
                 }
             }
-            threadThrowable.remove(0);
         }
     }
 
+    private synchronized void setZkw(ZooKeeperWatcher zkw) {
+        this.zkw = zkw;
+    }
+
     /**
      * 其他线程有问题，标识thread停止
      * 
@@ -147,13 +185,34 @@ public class JAgent implements Abortable {
         }
     }
 
+    /**
+     * 在/v0002/remotecontrol/ip节点上写本agent的session id，
+     * 客户端据此把实例节点的ephemeralOwner对应到ip
+     * 
+     */
+    private void publishSession() throws KeeperException {
+        ZKUtil.setData(zkw, ipPath, ToolUtil.toByte(Constant.SESSION_PREFIX
+                + Long.toHexString(zkw.getZooKeeper().getSessionId())));
+    }
+
     /**
      * 注册/v0002/remotecontrol/ip/input节点的监听器
      * 
      */
     private void registerInputListener() throws KeeperException {
-        zkw.registerListener(new RemoteCommandHandle(ja));
-        ZKUtil.watchAndGetNewChildren(zkw, inputPath);
+        inputHandle = new RemoteCommandHandle(ja, executor);
+        zkw.registerListener(inputHandle);
+        inputHandle.drain(inputPath);
+    }
+
+    /**
+     * 重新读取input节点上等待执行的命令，由CommandExecutor在有空闲时调用
+     * 
+     */
+    void drainInput() {
+        RemoteCommandHandle handle = inputHandle;
+        if (handle != null)
+            handle.drain(inputPath);
     }
 
     public static void main(String[] args) {
@@ -166,8 +225,12 @@ public class JAgent implements Abortable {
             LOG.error("program encount exception", e);
         } finally {
             try {
-                if (ja.zkw != null)
+                // 交接session时不关闭，临时节点留给下一个进程接管
+                if (ja.zkw != null
+                        && (ja.handoff == null || !ja.handoff.isEnabled()))
                     ja.zkw.close();
+                if (ja.executor != null)
+                    ja.executor.shutdown();
                 ja.checkDBThread.interrupt();
             } catch (Exception e) {
             }
@@ -0,0 +1,127 @@
+package com.sohu.cloudno.agent;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+
+import com.sohu.cloudno.comm.OutputFrame;
+import com.sohu.cloudno.comm.ShellPool;
+import com.sohu.cloudno.comm.ToolUtil;
+import com.sohu.cloudno.comm.ZKUtil;
+
+/**
+ * 每行输出一个节点cmd@id_i或者cmd@id/i，兼容旧版本的读取方。
+ * 最后一个节点是"EOF"，客户端声明能够解析END帧时是带退出码的END帧
+ */
+class LineResultWriter implements ResultWriter {
+    private static final Logger LOG = Logger.getLogger(LineResultWriter.class);
+    private final JAgent ja;
+    private final String nodePrefix;
+    // 流量控制窗口，null表示不控制
+    private final OutputWindow window;
+    // 用END帧结束输出
+    private final boolean endFrame;
+    private int i = 0;
+    // 客户端删除了命令的输出父节点，不再读取
+    private boolean abandoned = false;
+
+    LineResultWriter(JAgent ja, String nodePrefix) {
+        this(ja, nodePrefix, null, false);
+    }
+
+    LineResultWriter(JAgent ja, String nodePrefix, OutputWindow window,
+            boolean endFrame) {
+        this.ja = ja;
+        this.nodePrefix = nodePrefix;
+        this.window = window;
+        this.endFrame = endFrame;
+    }
+
+    @Override
+    public void write(String line) throws KeeperException,
+            InterruptedException {
+        if (abandoned)
+            return;
+        if (window != null)
+            window.acquire(i);
+        LOG.info("Return command result: " + nodePrefix + i);
+        create(nodePrefix + i++, ToolUtil.toByte(line));
+        LOG.info("Result data: " + line);
+    }
+
+    @Override
+    public void close(int exitValue) throws KeeperException {
+        if (!abandoned)
+            create(nodePrefix + i, eof(endFrame, exitValue));
+        if (window != null)
+            window.release();
+    }
+
+    private void create(String node, byte[] data) throws KeeperException {
+        try {
+            ZKUtil.creatEphemeralNodeNoWatch(ja.getZkw(), node, data);
+        } catch (NoNodeException e) {
+            abandon(node);
+        }
+    }
+
+    private void abandon(String node) {
+        abandoned = true;
+        LOG.info("parent of " + node + " removed by client, discard output");
+        if (window != null)
+            window.release();
+    }
+
+    @Override
+    public void cancel() throws KeeperException, InterruptedException {
+        if (window != null)
+            window.release();
+        writeCancelled(ja, nodePrefix, i, endFrame);
+    }
+
+    /**
+     * 最后一个输出节点的数据
+     *
+     * @param endFrame
+     *            客户端能够解析END帧
+     * @param exitValue
+     * @return byte[]
+     */
+    static byte[] eof(boolean endFrame, int exitValue) {
+        return endFrame ? OutputFrame.encodeEnd(exitValue) : ToolUtil
+                .toByte("EOF");
+    }
+
+    /**
+     * 删除序号0到next-1中客户端还没有取走的节点，
+     * 然后从next开始写一行CANCELLED和EOF；父节点已经被客户端删除时什么也不写
+     *
+     * @param ja
+     * @param nodePrefix
+     *            输出节点路径中序号之前的部分
+     * @param next
+     *            下一个输出节点的序号
+     * @param endFrame
+     *            用END帧结束，退出码和被kill时一致
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    static void writeCancelled(JAgent ja, String nodePrefix, int next,
+            boolean endFrame) throws KeeperException, InterruptedException {
+        for (int j = 0; j < next; j++) {
+            try {
+                ja.getZkw().getZooKeeper().delete(nodePrefix + j, -1);
+            } catch (NoNodeException e) {
+                // 已经被客户端取走
+            }
+        }
+        try {
+            ZKUtil.creatEphemeralNodeNoWatch(ja.getZkw(), nodePrefix + next,
+                    ToolUtil.toByte(CommandExecutor.CANCELLED));
+            ZKUtil.creatEphemeralNodeNoWatch(ja.getZkw(), nodePrefix
+                    + (next + 1), eof(endFrame, ShellPool.KILLED));
+        } catch (NoNodeException e) {
+            LOG.info("parent of " + nodePrefix + next + " removed by client");
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.sohu.cloudno.agent;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+import com.sohu.cloudno.comm.Conf;
+import com.sohu.cloudno.comm.Constant;
+import com.sohu.cloudno.comm.ZKUtil;
+
+/**
+ * 回收客户端没有删除的输出节点
+ *
+ * <p>
+ * 输出节点正常由客户端读取后删除；客户端中途退出时，dir布局的父节点output/cmd@id、
+ * 平铺布局的cmd@id_i和ack@id会一直留在zk上，临时节点在session交接后也不会消失。
+ * 命令结束（写出EOF、被取消或者被拒绝）ttl毫秒后，agent删除这个命令剩余的节点，
+ * 客户端已经删除时什么也不做。agent启动时上一个进程的命令都已经结束，
+ * 建立时间超过ttl的节点立即删除，其余的在ttl之后删除，接管的session中客户端还有时间读完。
+ * ttl不大于0时不回收。删除在单独的线程中进行，不占用写出输出的定时线程。
+ */
+class OutputReclaimer {
+    private static final Logger LOG = Logger.getLogger(OutputReclaimer.class);
+    private final JAgent ja;
+    private final long ttl;
+    private final ScheduledExecutorService timer;
+
+    OutputReclaimer(JAgent ja, Conf conf) {
+        this.ja = ja;
+        this.ttl = conf.getInt("output.ttl", 600000);
+        this.timer = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "OutputReclaimer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * 命令结束，ttl之后删除它剩余的输出节点
+     *
+     * @param ip
+     * @param id
+     *            命令序列号
+     * @param dir
+     *            是否dir布局
+     */
+    void schedule(final String ip, final long id, boolean dir) {
+        if (dir) {
+            reclaimLater(ZKUtil.getOutputRetPath(ip, id));
+            return;
+        }
+        if (ttl <= 0)
+            return;
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                deleteFlat(ip, id);
+            }
+        }, ttl, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 回收上一个进程留下的输出节点，agent启动时调用
+     *
+     * @param ip
+     */
+    void sweep(final String ip) {
+        if (ttl <= 0)
+            return;
+        final long started = System.currentTimeMillis();
+        timer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweepNow(ip, started);
+                } catch (KeeperException e) {
+                    LOG.warn("sweep stale output of " + ip + " failed", e);
+                }
+            }
+        });
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    // 只处理started之前建立的节点，之后的属于本进程的命令，结束时各自安排回收
+    private void sweepNow(String ip, long started) throws KeeperException {
+        String output = ZKUtil.getOutputPath(ip);
+        List<String> children = ZKUtil.lsChildrenNoWatch(ja.getZkw(), output);
+        if (children == null)
+            return;
+        int stale = 0;
+        for (String child : children) {
+            if (!child.startsWith("cmd@") && !child.startsWith(Constant.ACK))
+                continue;
+            String node = ZKUtil.joinZNode(output, child);
+            Stat s = ZKUtil.getStatNoWatch(ja.getZkw(), node);
+            if (s == null || s.getCtime() >= started)
+                continue;
+            if (System.currentTimeMillis() - s.getCtime() >= ttl) {
+                stale++;
+                delete(node);
+            } else {
+                reclaimLater(node);
+            }
+        }
+        LOG.info("reclaimed " + stale + " stale output nodes of " + ip);
+    }
+
+    private void reclaimLater(final String node) {
+        if (ttl <= 0)
+            return;
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                delete(node);
+            }
+        }, ttl, TimeUnit.MILLISECONDS);
+    }
+
+    // 平铺布局下命令的节点和output下的兄弟节点混在一起，按前缀列出
+    private void deleteFlat(String ip, long id) {
+        String output = ZKUtil.getOutputPath(ip);
+        String prefix = "cmd@" + id + "_";
+        try {
+            List<String> children = ZKUtil.lsChildrenNoWatch(ja.getZkw(),
+                    output);
+            if (children == null)
+                return;
+            for (String child : children) {
+                if (child.startsWith(prefix))
+                    delete(ZKUtil.joinZNode(output, child));
+            }
+        } catch (KeeperException e) {
+            LOG.warn("reclaim output of command " + id + " failed", e);
+        }
+        delete(ZKUtil.getAckPath(ip, id, false));
+    }
+
+    private void delete(String node) {
+        try {
+            ZKUtil.delNodeRecursively(ja.getZkw(), node);
+            LOG.info("reclaim output " + node);
+        } catch (KeeperException.NoNodeException e) {
+            // 客户端已经删除
+        } catch (KeeperException e) {
+            LOG.warn("reclaim output " + node + " failed", e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.sohu.cloudno.agent;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+
+import com.sohu.cloudno.comm.ToolUtil;
+import com.sohu.cloudno.comm.ZKUtil;
+import com.sohu.cloudno.comm.ZooKeeperListener;
+
+/**
+ * 输出的流量控制窗口，客户端消费得慢时暂停写出
+ *
+ * <p>
+ * 客户端把已经消费的输出节点数写到output/ack@id，agent在ack节点上设置watch，
+ * 序号不小于确认数+window的节点要等到客户端确认后才写出。写出线程阻塞在这里，
+ * 命令的stdout随之被阻塞，两边的内存和zk上的节点数都不随输出总量增长。
+ *
+ * <p>
+ * 超过stall毫秒没有得到确认时认为客户端已经不在读取，放开窗口按原来的方式写完，
+ * 由命令自己的timeout结束它。
+ */
+class OutputWindow extends ZooKeeperListener {
+    private static final Logger LOG = Logger.getLogger(OutputWindow.class);
+    // watch在session重建后丢失，等待时按这个间隔重新读取ack节点
+    private static final long RECHECK = 1000;
+    private final JAgent ja;
+    private final String ackPath;
+    private final int window;
+    private final long stall;
+    // 客户端确认已经消费的节点数
+    private int acked = 0;
+    // ack节点的变化计数
+    private long changes = 0;
+    private boolean open = true;
+
+    OutputWindow(JAgent ja, String ackPath, int window, long stall) {
+        super(ja.getZkw());
+        this.ja = ja;
+        this.ackPath = ackPath;
+        this.window = window;
+        this.stall = stall;
+        zkw.registerListener(this);
+    }
+
+    /**
+     * 节点index现在是否可以写出，不等待
+     *
+     * @param index
+     * @return boolean
+     */
+    synchronized boolean available(int index) {
+        return !open || index < acked + window;
+    }
+
+    /**
+     * 等待客户端确认，直到可以写出节点index
+     *
+     * @param index
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void acquire(int index) throws KeeperException, InterruptedException {
+        if (available(index))
+            return;
+        long deadline = System.currentTimeMillis() + stall;
+        for (;;) {
+            long since;
+            synchronized (this) {
+                since = changes;
+            }
+            int n = readAck();
+            synchronized (this) {
+                if (n > acked)
+                    acked = n;
+                if (!open || index < acked + window)
+                    return;
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    LOG.warn("no ack on " + ackPath + " for " + stall
+                            + "ms, stop flow control at node " + index);
+                    break;
+                }
+                if (changes == since)
+                    wait(Math.min(left, RECHECK));
+            }
+        }
+        release();
+    }
+
+    /**
+     * 输出写完或者取消时调用，唤醒等待的写出线程并删除ack节点
+     */
+    void release() {
+        synchronized (this) {
+            if (!open)
+                return;
+            open = false;
+            notifyAll();
+        }
+        zkw.unregisterListener(this);
+        try {
+            ja.getZkw().getZooKeeper().delete(ackPath, -1);
+        } catch (NoNodeException e) {
+            // 客户端没有确认过或者已经删除
+        } catch (Exception e) {
+            LOG.warn("can not delete " + ackPath, e);
+        }
+    }
+
+    @Override
+    public void nodeCreated(String path) {
+        if (path.equals(ackPath))
+            changed();
+    }
+
+    @Override
+    public void nodeDataChanged(String path) {
+        if (path.equals(ackPath))
+            changed();
+    }
+
+    @Override
+    public void connected(long sessionId) {
+        changed();
+    }
+
+    private synchronized void changed() {
+        changes++;
+        notifyAll();
+    }
+
+    // exists的watch在节点建立和数据变化时都会触发
+    private int readAck() throws KeeperException {
+        if (!ZKUtil.watchAndCheckExists(ja.getZkw(), ackPath))
+            return 0;
+        byte[] data = ZKUtil.getDataNoWatch(ja.getZkw(), ackPath);
+        if (data == null)
+            return 0;
+        try {
+            return Integer.parseInt(ToolUtil.toStr(data).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
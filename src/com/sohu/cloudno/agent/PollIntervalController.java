@@ -0,0 +1,57 @@
+package com.sohu.cloudno.agent;
+
+import com.sohu.cloudno.comm.Conf;
+
+/**
+ * CheckDBThread的轮询间隔控制
+ *
+ * <p>
+ * 发现实例变化或者刚开始出错后的monitor_fast_period毫秒内按照monitor_interval_min快速轮询，
+ * 之后每轮乘以monitor_interval_backoff，直到monitor_interval_max。
+ * 持续同样的错误只在第一次进入快速轮询，之后逐步退避，不会按最短间隔反复fork。
+ * 没有配置这些参数时退化为固定的monitor_interval_time。
+ */
+class PollIntervalController {
+    private final long min;
+    private final long max;
+    private final double backoff;
+    private final long fastPeriod;
+    // 快速轮询截止时间
+    private long fastUntil = 0;
+    private long current;
+
+    PollIntervalController(Conf conf) {
+        long fixed = Long.parseLong(conf.get("monitor_interval_time"));
+        min = conf.getInt("monitor_interval_min", (int) fixed);
+        max = Math.max(min, conf.getInt("monitor_interval_max", (int) fixed));
+        fastPeriod = conf.getInt("monitor_fast_period", 0);
+        double factor = 1;
+        try {
+            factor = Double.parseDouble(conf.get("monitor_interval_backoff",
+                    "1"));
+        } catch (NumberFormatException e) {
+        }
+        backoff = factor < 1 ? 1 : factor;
+        current = min;
+    }
+
+    /**
+     * 计算下一轮的等待时间
+     *
+     * @param active
+     *            本轮是否发现变化或者刚开始出错
+     * @return long 单位milliseconds
+     */
+    long next(boolean active) {
+        long now = System.currentTimeMillis();
+        if (active)
+            fastUntil = now + fastPeriod;
+
+        if (active || now < fastUntil) {
+            current = min;
+        } else {
+            current = Math.min(max, (long) (current * backoff));
+        }
+        return current;
+    }
+}
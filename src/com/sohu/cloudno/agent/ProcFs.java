@@ -0,0 +1,213 @@
+package com.sohu.cloudno.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 读取/proc文件系统的工具方法，root可以指向伪造的/proc目录
+ *
+ * <p>
+ * 读取fd的链接目标用到java.nio.file，agent需要Java 7以上运行。
+ */
+class ProcFs {
+    // /proc/net/tcp中LISTEN状态的值
+    private static final String TCP_LISTEN = "0A";
+    // /proc/[pid]/fd下socket的链接目标前缀
+    private static final String SOCKET = "socket:[";
+
+    private ProcFs() {
+    }
+
+    /**
+     * 列出所有进程的pid
+     *
+     * @param root
+     * @return List
+     */
+    static List<String> listPids(String root) {
+        List<String> pids = new ArrayList<String>();
+        String[] entries = new File(root).list();
+        if (entries == null)
+            return pids;
+        for (String entry : entries) {
+            if (entry.length() > 0 && Character.isDigit(entry.charAt(0)))
+                pids.add(entry);
+        }
+        return pids;
+    }
+
+    /**
+     * 读取进程的命令行，参数之间的'\0'替换为空格
+     *
+     * @param root
+     * @param pid
+     * @return String null表示进程已经退出或者没有权限
+     */
+    static String readCmdline(String root, String pid) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(root + "/" + pid + "/cmdline");
+            byte[] buf = new byte[4096];
+            int n = fis.read(buf);
+            if (n <= 0)
+                return "";
+            for (int i = 0; i < n; i++) {
+                if (buf[i] == 0)
+                    buf[i] = ' ';
+            }
+            return new String(buf, 0, n);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                if (fis != null)
+                    fis.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * 读取/proc/[pid]/status中的Name字段
+     *
+     * @param root
+     * @param pid
+     * @return String null表示进程已经退出或者没有权限
+     */
+    static String readName(String root, String pid) {
+        for (String line : readLines(root + "/" + pid + "/status")) {
+            if (line.startsWith("Name:"))
+                return line.substring(5).trim();
+        }
+        return null;
+    }
+
+    /**
+     * 从/proc/net/tcp和/proc/net/tcp6得到处于LISTEN状态的socket
+     *
+     * @param root
+     * @return Map socket的inode对应的端口
+     */
+    static Map<Long, Integer> listenSockets(String root) {
+        Map<Long, Integer> sockets = new HashMap<Long, Integer>();
+        parseTcp(readLines(root + "/net/tcp"), sockets);
+        parseTcp(readLines(root + "/net/tcp6"), sockets);
+        return sockets;
+    }
+
+    /**
+     * 从/proc/[pid]/fd得到进程打开的socket，fd是指向"socket:[inode]"的符号链接
+     *
+     * @param root
+     * @param pid
+     * @return Set socket的inode，null表示进程已经退出或者没有权限
+     */
+    static Set<Long> socketInodes(String root, String pid) {
+        File dir = new File(root + "/" + pid + "/fd");
+        String[] fds = dir.list();
+        if (fds == null)
+            return null;
+        Set<Long> inodes = new HashSet<Long>();
+        for (String fd : fds) {
+            String target;
+            try {
+                target = Files.readSymbolicLink(new File(dir, fd).toPath())
+                        .toString();
+            } catch (IOException e) {
+                // fd已经关闭
+                continue;
+            }
+            if (!target.startsWith(SOCKET) || !target.endsWith("]"))
+                continue;
+            try {
+                inodes.add(Long.parseLong(target.substring(SOCKET.length(),
+                        target.length() - 1)));
+            } catch (NumberFormatException e) {
+            }
+        }
+        return inodes;
+    }
+
+    /**
+     * 从/proc/net/ip_vs得到LVS的virtual service端口
+     *
+     * @param root
+     * @return Set
+     */
+    static Set<Integer> ipvsPorts(String root) {
+        Set<Integer> ports = new HashSet<Integer>();
+        for (String line : readLines(root + "/net/ip_vs")) {
+            // TCP  0A0A3A64:0CEA rr
+            if (!line.startsWith("TCP") && !line.startsWith("UDP"))
+                continue;
+            String[] f = line.trim().split("\\s+");
+            if (f.length > 1)
+                addPort(f[1], ports);
+        }
+        return ports;
+    }
+
+    // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode
+    private static void parseTcp(List<String> lines, Map<Long, Integer> sockets) {
+        for (String line : lines) {
+            String[] f = line.trim().split("\\s+");
+            if (f.length <= 9 || !f[3].equals(TCP_LISTEN))
+                continue;
+            int port = parsePort(f[1]);
+            if (port < 0)
+                continue;
+            try {
+                sockets.put(Long.parseLong(f[9]), port);
+            } catch (NumberFormatException e) {
+            }
+        }
+    }
+
+    private static void addPort(String address, Set<Integer> ports) {
+        int port = parsePort(address);
+        if (port >= 0)
+            ports.add(port);
+    }
+
+    // 地址格式为十六进制的ip:port
+    private static int parsePort(String address) {
+        int idx = address.lastIndexOf(':');
+        if (idx < 0)
+            return -1;
+        try {
+            return Integer.parseInt(address.substring(idx + 1), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static List<String> readLines(String fileName) {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(fileName));
+            String line;
+            while ((line = br.readLine()) != null)
+                lines.add(line);
+        } catch (IOException e) {
+            // 进程已经退出或者没有对应的文件
+        } finally {
+            try {
+                if (br != null)
+                    br.close();
+            } catch (IOException e) {
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,164 @@
+package com.sohu.cloudno.agent;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.sohu.cloudno.comm.Conf;
+import com.sohu.cloudno.comm.Constant;
+import com.sohu.cloudno.comm.ToolUtil;
+
+/**
+ * 在进程内通过/proc探测本机的数据库实例，不需要fork cp_db_relation.sh
+ *
+ * <p>
+ * 每一轮扫描/proc下的所有进程，按/proc/[pid]/status的Name或者cmdline第一个参数的文件名
+ * 找出数据库进程，再把/proc/[pid]/fd下的socket和/proc/net/tcp、tcp6中LISTEN状态的socket
+ * 按inode对应起来，得到每个数据库进程实际监听的端口；lvs的端口来自/proc/net/ip_vs。
+ * 这样得到正在运行的(类型, 端口)，进程存在但是端口被别的进程占用时不算运行。
+ *
+ * <p>
+ * 实例的组信息(GRP、grp、inst和data)不能从进程上得到，仍然来自实例关系文件
+ * discovery.relation.file，文件内容和cp_db_relation.sh的输出格式相同，每行一条记录，
+ * inst字段以"_端口"结尾。只输出/proc上正在运行的实例对应的记录；
+ * is_ha为Y的记录在keepalived进程(discovery.proc.ha)没有运行时输出为N。
+ * 类型和进程名的对应关系可以通过discovery.proc.names配置，格式为type:name,type:name。
+ * 没有权限读取数据库进程的fd时，退化为只检查端口是否处于LISTEN状态。
+ * discovery.proc.root可以指向伪造的/proc，com.sohu.cloudno.test.ProcDiscoveryTest用它检查。
+ */
+public class ProcInstanceDiscovery implements InstanceDiscovery {
+    private static final Logger LOG = Logger
+            .getLogger(ProcInstanceDiscovery.class);
+    private static final String DEFAULT_NAMES = "mysql:mysqld,PXCW:mysqld,PXCR:mysqld,"
+            + "oracle:tnslsnr,mongodb:mongod,proxy:mysql-proxy";
+
+    private final String procRoot;
+    private final String relationFile;
+    // 进程名对应的实例类型(小写)
+    private final Map<String, Set<String>> procTypes = new HashMap<String, Set<String>>();
+    // 高可用进程名
+    private final String haName;
+
+    public ProcInstanceDiscovery(Conf conf) {
+        procRoot = conf.get("discovery.proc.root", "/proc");
+        relationFile = conf.get("discovery.relation.file",
+                Constant.JA_RELATION);
+        haName = conf.get("discovery.proc.ha", "keepalived");
+        for (String pair : conf.get("discovery.proc.names", DEFAULT_NAMES)
+                .split("\\s*,\\s*")) {
+            int idx = pair.indexOf(':');
+            if (idx <= 0)
+                continue;
+            String name = pair.substring(idx + 1);
+            Set<String> types = procTypes.get(name);
+            if (types == null) {
+                types = new HashSet<String>();
+                procTypes.put(name, types);
+            }
+            types.add(pair.substring(0, idx).toLowerCase());
+        }
+    }
+
+    @Override
+    public String discover() {
+        List<String> pids = ProcFs.listPids(procRoot);
+        if (pids.isEmpty()) {
+            LOG.warn(procRoot + " is not readable");
+            return null;
+        }
+        StringBuilder relation = new StringBuilder();
+        for (String line : ToolUtil.getAllLine(relationFile)) {
+            if (!line.startsWith("#"))
+                relation.append(line.replace("JA_RESULT=", "")).append('\n');
+        }
+        List<InstanceRecord> records = InstanceRecord.parse(relation
+                .toString());
+        if (records.isEmpty()) {
+            LOG.warn("no instance defined in " + relationFile);
+            return null;
+        }
+
+        // 正在运行的"类型:端口"
+        Set<String> running = new HashSet<String>();
+        boolean ha = false;
+        Map<Long, Integer> listen = ProcFs.listenSockets(procRoot);
+        for (String pid : pids) {
+            Set<String> types = new HashSet<String>();
+            for (String name : names(pid)) {
+                if (name.equals(haName))
+                    ha = true;
+                Set<String> t = procTypes.get(name);
+                if (t != null)
+                    types.addAll(t);
+            }
+            if (types.isEmpty())
+                continue;
+            Set<Long> inodes = ProcFs.socketInodes(procRoot, pid);
+            for (int port : inodes == null ? listen.values() : ports(inodes,
+                    listen)) {
+                for (String type : types) {
+                    running.add(type + ":" + port);
+                }
+            }
+            if (inodes == null)
+                LOG.debug("can not read fd of " + pid + ", match " + types
+                        + " by listen port only");
+        }
+        Set<Integer> ipvs = ProcFs.ipvsPorts(procRoot);
+
+        StringBuilder sb = new StringBuilder();
+        for (InstanceRecord r : records) {
+            if (!isAlive(r, running, ipvs))
+                continue;
+            if (!ha && r.getIsHa().equals("Y"))
+                r = r.withIsHa("N");
+            sb.append(sb.length() == 0 ? "JA_RESULT=" : "\n").append(r);
+        }
+        return sb.length() == 0 ? "JA_RESULT=Y" : sb.toString();
+    }
+
+    // status中的Name最多15个字符，所以同时使用cmdline第一个参数的文件名
+    private Set<String> names(String pid) {
+        Set<String> names = new HashSet<String>(2);
+        String name = ProcFs.readName(procRoot, pid);
+        if (name != null)
+            names.add(name);
+        String cmdline = ProcFs.readCmdline(procRoot, pid);
+        if (cmdline != null && cmdline.length() > 0) {
+            int end = cmdline.indexOf(' ');
+            String argv0 = end < 0 ? cmdline : cmdline.substring(0, end);
+            names.add(argv0.substring(argv0.lastIndexOf('/') + 1));
+        }
+        return names;
+    }
+
+    private static Set<Integer> ports(Set<Long> inodes,
+            Map<Long, Integer> listen) {
+        Set<Integer> ports = new HashSet<Integer>();
+        for (Long inode : inodes) {
+            Integer port = listen.get(inode);
+            if (port != null)
+                ports.add(port);
+        }
+        return ports;
+    }
+
+    private static boolean isAlive(InstanceRecord r, Set<String> running,
+            Set<Integer> ipvs) {
+        int port = r.getPort();
+        if (port < 0)
+            return false;
+        if (r.getType().equalsIgnoreCase("lvs"))
+            return ipvs.contains(port);
+        return running.contains(r.getType().toLowerCase() + ":" + port);
+    }
+
+    @Override
+    public String toString() {
+        return procRoot + "+" + relationFile;
+    }
+}
@@ -0,0 +1,57 @@
+package com.sohu.cloudno.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * 记录经过的输出，用于缓存；输出超过maxBytes时放弃记录
+ */
+class RecordingResultWriter implements ResultWriter {
+    private final ResultWriter writer;
+    private final long ttl;
+    private final long maxBytes;
+    private List<String> lines = new ArrayList<String>();
+    private long bytes = 0;
+    private CommandCache.Result result = null;
+
+    RecordingResultWriter(ResultWriter writer, long ttl, long maxBytes) {
+        this.writer = writer;
+        this.ttl = ttl;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void write(String line) throws KeeperException, InterruptedException {
+        if (lines != null) {
+            bytes += line.length() + 1;
+            if (bytes > maxBytes)
+                lines = null;
+            else
+                lines.add(line);
+        }
+        writer.write(line);
+    }
+
+    @Override
+    public void close(int exitValue) throws KeeperException,
+            InterruptedException {
+        writer.close(exitValue);
+        if (lines != null)
+            result = new CommandCache.Result(lines, exitValue, ttl);
+    }
+
+    @Override
+    public void cancel() throws KeeperException, InterruptedException {
+        lines = null;
+        writer.cancel();
+    }
+
+    /**
+     * @return CommandCache.Result null表示输出太大或者没有正常结束
+     */
+    CommandCache.Result getResult() {
+        return result;
+    }
+}
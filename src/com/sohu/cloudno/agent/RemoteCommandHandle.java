@@ -1,26 +1,61 @@
 package com.sohu.cloudno.agent;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
 
+import com.sohu.cloudno.comm.CommandEnvelope;
+import com.sohu.cloudno.comm.Constant;
 import com.sohu.cloudno.comm.ToolUtil;
 import com.sohu.cloudno.comm.ZKUtil;
 import com.sohu.cloudno.comm.ZKUtil.NodeAndData;
 import com.sohu.cloudno.comm.ZooKeeperListener;
 
 /**
- * 通过检查inputNode是否已有需要执行的命令，通知主线程可以开始运行相应的远程调用
+ * 通过检查inputNode是否已有需要执行的命令，把命令交给CommandExecutor执行，
+ * cancel@id节点表示取消命令，每一轮先于命令处理
+ * 
+ * <p>
+ * 每一轮读取所有新的子节点，getData异步发出，只等待一次往返；按序列号排序后依次提交，
+ * 取走的节点在这一轮结束时批量异步删除。异步回调由ZooKeeper的事件线程执行，
+ * 所以watch触发后转到InputDrainer线程读取，同时到达的多次通知合并成一轮。
  * 
  * @author yanjiechen
  * 
  */
 public class RemoteCommandHandle extends ZooKeeperListener {
+    private static final Logger LOG = Logger
+            .getLogger(RemoteCommandHandle.class);
     private JAgent ja;
+    private CommandExecutor executor;
+    private final ThreadPoolExecutor drainer;
+    // 已经有一轮读取在等待执行
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
 
-    RemoteCommandHandle(JAgent ja) {
+    RemoteCommandHandle(JAgent ja, CommandExecutor executor) {
         super(ja.getZkw());
         this.ja = ja;
+        this.executor = executor;
+        this.drainer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "InputDrainer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.drainer.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -29,19 +64,81 @@ public class RemoteCommandHandle extends ZooKeeperListener {
      * @param path
      *            full path of the node whose children have changed
      */
-    public void nodeChildrenChanged(String path) {
+    public void nodeChildrenChanged(final String path) {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        drainer.execute(new Runnable() {
+            @Override
+            public void run() {
+                scheduled.set(false);
+                drain(path);
+            }
+        });
+    }
+
+    /**
+     * 按序列号顺序取走input节点上的新命令，执行服务饱和时剩下的命令留在input节点上，
+     * 并且从已读集合去掉，有空闲时再次读取。不能在ZooKeeper的事件线程中调用
+     * 
+     * @param path
+     *            input节点
+     */
+    synchronized void drain(String path) {
         try {
-            List<NodeAndData> list = ZKUtil.watchAndGetNewChildren(ja.getZkw(),path);
+            List<NodeAndData> list = ZKUtil.getNewChildrenPipelined(ja.getZkw(), path);
             while (!list.isEmpty()) {
-                String znode = list.get(0).getNode();
-                ZKUtil.delNodeRecursively(ja.getZkw(), znode);
-                long id = Long.parseLong(znode.substring(znode.lastIndexOf("@") + 1));
-                String cmd = ToolUtil.toStr(list.get(0).getData());
-                new ExecCmdThread(ja, ja.getConf(), "ExecCmdThread", id, cmd).start();
-                list = ZKUtil.watchAndGetNewChildren(ja.getZkw(), path);
+                Collections.sort(list, BY_SEQ);
+                List<String> consumed = new ArrayList<String>(list.size());
+                // 先处理所有取消请求，执行服务饱和时它们不能和命令一起留在input节点上
+                for (Iterator<NodeAndData> it = list.iterator(); it.hasNext();) {
+                    String znode = it.next().getNode();
+                    if (znode.substring(znode.lastIndexOf('/') + 1)
+                            .startsWith(Constant.CANCEL)) {
+                        executor.cancel(seq(znode));
+                        consumed.add(znode);
+                        it.remove();
+                    }
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    String znode = list.get(i).getNode();
+                    long id = seq(znode);
+                    CommandEnvelope env;
+                    try {
+                        env = CommandEnvelope.parse(ToolUtil.toStr(list.get(i)
+                                .getData()));
+                    } catch (NumberFormatException e) {
+                        LOG.warn("ignore bad command " + list.get(i), e);
+                        consumed.add(znode);
+                        continue;
+                    }
+                    if (!executor.submit(id, env)) {
+                        for (int j = i; j < list.size(); j++) {
+                            ZKUtil.delNodeFromInsideSet(ja.getZkw(), list
+                                    .get(j).getNode());
+                        }
+                        ZKUtil.delNodesAsync(ja.getZkw(), consumed);
+                        return;
+                    }
+                    consumed.add(znode);
+                }
+                ZKUtil.delNodesAsync(ja.getZkw(), consumed);
+                list = ZKUtil.getNewChildrenPipelined(ja.getZkw(), path);
             }
         } catch (KeeperException e) {
             ja.abort(RemoteCommandHandle.class.getSimpleName(), e);
         }
     }
+
+    private static long seq(String znode) {
+        return Long.parseLong(znode.substring(znode.lastIndexOf("@") + 1));
+    }
+
+    private static final Comparator<NodeAndData> BY_SEQ = new Comparator<NodeAndData>() {
+        @Override
+        public int compare(NodeAndData o1, NodeAndData o2) {
+            long s1 = seq(o1.getNode());
+            long s2 = seq(o2.getNode());
+            return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+        }
+    };
 }
\ No newline at end of file
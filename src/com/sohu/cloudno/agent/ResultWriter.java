@@ -0,0 +1,35 @@
+package com.sohu.cloudno.agent;
+
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * 把远程命令的输出写到output节点
+ */
+interface ResultWriter {
+    /**
+     * 写一行输出
+     *
+     * @param line
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void write(String line) throws KeeperException, InterruptedException;
+
+    /**
+     * 写完剩余的输出和结束标志
+     *
+     * @param exitValue
+     *            命令的退出码
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void close(int exitValue) throws KeeperException, InterruptedException;
+
+    /**
+     * 命令被取消：丢弃没有写出的输出，删除客户端还没有取走的输出节点，写CANCELLED结束标志
+     *
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void cancel() throws KeeperException, InterruptedException;
+}
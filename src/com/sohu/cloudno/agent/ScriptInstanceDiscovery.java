@@ -0,0 +1,29 @@
+package com.sohu.cloudno.agent;
+
+import com.sohu.cloudno.comm.Constant;
+import com.sohu.cloudno.comm.ToolUtil;
+
+/**
+ * 通过运行cp_db_relation.sh探测本机的数据库实例
+ */
+class ScriptInstanceDiscovery implements InstanceDiscovery {
+    private final long timeout;
+
+    /**
+     * @param timeout
+     *            脚本超时时间，单位milliseconds
+     */
+    ScriptInstanceDiscovery(long timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public String discover() {
+        return ToolUtil.runOSCmdRaw(Constant.SH_CHECK_DB, timeout);
+    }
+
+    @Override
+    public String toString() {
+        return Constant.SH_CHECK_DB;
+    }
+}
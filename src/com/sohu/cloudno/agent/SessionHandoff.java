@@ -0,0 +1,151 @@
+package com.sohu.cloudno.agent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.ZooKeeper;
+
+import com.sohu.cloudno.comm.Conf;
+import com.sohu.cloudno.comm.Constant;
+import com.sohu.cloudno.comm.ZooKeeperConnectionException;
+import com.sohu.cloudno.comm.ZooKeeperWatcher;
+
+/**
+ * 在agent重启之间交接zk session
+ *
+ * <p>
+ * 每次建立session后把session id和密码写到session.file，重启时先用它们接管旧session，
+ * 在session超时之前完成重启的话，本机的临时实例节点不会被删除再重建，队列里也就没有成批的
+ * DELETE/CREATE事件。旧session已经过期或者文件不可用时退回到新建session。
+ * 启用交接后agent退出时不再关闭session，由服务端在session超时后清理。
+ */
+class SessionHandoff {
+    private static final Logger LOG = Logger.getLogger(SessionHandoff.class);
+    private final boolean enabled;
+    private final String fileName;
+
+    SessionHandoff(Conf conf) {
+        enabled = conf.get("session.handoff", "false").equals("true");
+        fileName = conf.get("session.file", Constant.JA_SESSION);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 连接zk，优先接管上一个进程的session
+     *
+     * @param conf
+     * @param descriptor
+     * @param ja
+     * @return ZooKeeperWatcher
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    ZooKeeperWatcher connect(Conf conf, String descriptor, JAgent ja)
+            throws IOException, InterruptedException {
+        if (enabled) {
+            Properties p = load();
+            if (p != null) {
+                long sessionId = Long.parseLong(p.getProperty("session.id"),
+                        16);
+                try {
+                    ZooKeeperWatcher zkw = new ZooKeeperWatcher(conf,
+                            descriptor, ja, sessionId,
+                            fromHex(p.getProperty("session.passwd")));
+                    LOG.info("reattach session 0x"
+                            + Long.toHexString(sessionId));
+                    return zkw;
+                } catch (ZooKeeperConnectionException e) {
+                    LOG.info("can not reattach session 0x"
+                            + Long.toHexString(sessionId) + ", "
+                            + e.getMessage() + ", create a new one");
+                }
+            }
+        }
+        ZooKeeperWatcher zkw = new ZooKeeperWatcher(conf, descriptor, ja);
+        save(zkw);
+        return zkw;
+    }
+
+    /**
+     * 保存session id和密码，文件只有owner可读
+     *
+     * @param zkw
+     */
+    void save(ZooKeeperWatcher zkw) {
+        if (!enabled)
+            return;
+        ZooKeeper zk = zkw.getZooKeeper();
+        Properties p = new Properties();
+        p.setProperty("session.id", Long.toHexString(zk.getSessionId()));
+        p.setProperty("session.passwd", toHex(zk.getSessionPasswd()));
+
+        File f = new File(fileName);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(f);
+            f.setReadable(false, false);
+            f.setReadable(true, true);
+            p.store(fos, "zk session of JAgent");
+        } catch (IOException e) {
+            LOG.warn("write session file " + fileName + " error", e);
+        } finally {
+            try {
+                if (fos != null)
+                    fos.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private Properties load() {
+        File f = new File(fileName);
+        if (!f.exists())
+            return null;
+        Properties p = new Properties();
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(f);
+            p.load(fis);
+            Long.parseLong(p.getProperty("session.id"), 16);
+            fromHex(p.getProperty("session.passwd"));
+            return p;
+        } catch (RuntimeException e) {
+            // 缺少字段或者不是16进制
+            LOG.warn("session file " + fileName + " is corrupt, ignore it");
+            return null;
+        } catch (IOException e) {
+            LOG.warn("read session file " + fileName + " error", e);
+            return null;
+        } finally {
+            try {
+                if (fis != null)
+                    fis.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static String toHex(byte[] b) {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : b) {
+            sb.append(Character.forDigit((x >> 4) & 0xf, 16)).append(
+                    Character.forDigit(x & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String s) {
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,380 @@
+package com.sohu.cloudno.agent;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.sohu.cloudno.comm.Conf;
+import com.sohu.cloudno.comm.ToolUtil;
+
+/**
+ * 大块命令输出的本地流式服务，输出不经过zk
+ *
+ * <p>
+ * 命令输出超过阈值后写到本地文件，开始溢出时就用随机token登记在这里，output节点上只写一个SPILL描述符，
+ * 客户端不用等命令结束就可以读取。客户端连接spill.port，发送一行"token 偏移"，
+ * 服务端从偏移处开始用FileChannel.transferTo发送文件，追上写入位置后等待新的输出，
+ * 命令结束并且发完之后发送结尾(字节数和crc32)再关闭连接。
+ *
+ * <p>
+ * 连接上的数据分成块，每块以4字节的长度开头：正数表示后面跟着这么多字节的输出，
+ * {@link #HEARTBEAT}表示空闲时的心跳，{@link #END}后面跟着8字节的总字节数和8字节的crc32，
+ * {@link #FAILED}表示输出没有写完整。传输中断的客户端用已经收到的字节数作为偏移重新连接。
+ * 文件在完整发送一次之后删除；没有读完的文件在命令结束spill.ttl毫秒后删除。
+ */
+class SpillServer extends Thread {
+    private static final Logger LOG = Logger.getLogger(SpillServer.class);
+    // 块长度的特殊值
+    static final int HEARTBEAT = 0;
+    static final int END = -1;
+    static final int FAILED = -2;
+    // 请求行的长度上限，防止恶意连接占用内存
+    private static final int MAX_TOKEN = 96;
+    // 一块的最大长度
+    private static final int BLOCK = 1 << 20;
+    // 没有新输出时等待和发送心跳的间隔，单位milliseconds
+    private static final long POLL = 1000;
+    private static final int HEARTBEAT_POLLS = 10;
+    private final ServerSocketChannel server;
+    // 写到描述符里的本机地址
+    private final String host;
+    private final File dir;
+    private final long ttl;
+    private final SecureRandom random = new SecureRandom();
+    // token对应的文件
+    private final Map<String, Spill> spills = new ConcurrentHashMap<String, Spill>();
+    // 发送文件的线程，慢的客户端不会阻塞accept。命令运行期间每个连接都占用一个线程等待新的输出，
+    // 固定大小的线程池会让多出来的读取方收不到心跳而超时，所以线程数不设上限，空闲的线程自动回收
+    private final ExecutorService senders;
+
+    SpillServer(Conf conf) throws IOException {
+        super("SpillServer");
+        setDaemon(true);
+        host = ToolUtil.getPhysicalIp();
+        dir = new File(conf.get("spill.dir", System
+                .getProperty("java.io.tmpdir")));
+        ttl = conf.getInt("spill.ttl", 600000);
+        // 清理上次运行留下的文件
+        File[] old = dir.listFiles();
+        for (int i = 0; old != null && i < old.length; i++) {
+            if (old[i].getName().startsWith("ja-spill-"))
+                old[i].delete();
+        }
+        senders = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SpillSender");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(conf.getInt("spill.port", 0)));
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * 建立一个新的溢出文件
+     *
+     * @return File
+     * @throws IOException
+     */
+    File createFile() throws IOException {
+        return File.createTempFile("ja-spill-", ".out", dir);
+    }
+
+    /**
+     * 登记正在写入的溢出文件，客户端随后就可以读取
+     *
+     * @param f
+     * @return Spill 写入方用来通知进度和结束
+     */
+    Spill register(File f) {
+        expire();
+        String token = Long.toHexString(random.nextLong())
+                + Long.toHexString(random.nextLong());
+        Spill s = new Spill(token, f);
+        spills.put(token, s);
+        return s;
+    }
+
+    @Override
+    public void run() {
+        LOG.info("spill server listen on " + getPort());
+        while (server.isOpen()) {
+            try {
+                final SocketChannel sc = server.accept();
+                senders.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(sc);
+                        } catch (IOException e) {
+                            LOG.warn("serve spill file error", e);
+                        } catch (InterruptedException e) {
+                            LOG.info("spill sender interrupted");
+                        } finally {
+                            close(sc);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                if (server.isOpen())
+                    LOG.warn("accept spill connection error", e);
+            }
+        }
+    }
+
+    void shutdown() {
+        try {
+            server.close();
+        } catch (IOException e) {
+        }
+        senders.shutdownNow();
+        for (Spill s : spills.values()) {
+            s.file.delete();
+        }
+        spills.clear();
+    }
+
+    private void serve(SocketChannel sc) throws IOException,
+            InterruptedException {
+        sc.socket().setSoTimeout(10000);
+        expire();
+        String request = readToken(sc);
+        Spill s = null;
+        long pos = 0;
+        if (request != null) {
+            String[] f = request.split("\\s+");
+            s = spills.get(f[0]);
+            try {
+                pos = f.length > 1 ? Long.parseLong(f[1]) : 0;
+            } catch (NumberFormatException e) {
+                s = null;
+            }
+        }
+        if (s == null || pos < 0) {
+            LOG.warn("unknown spill token from "
+                    + sc.socket().getRemoteSocketAddress());
+            return;
+        }
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(s.file, "r");
+        } catch (FileNotFoundException e) {
+            // 另一个连接刚好发完并删除了文件
+            LOG.warn("spill " + s.file + " already removed");
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(20);
+        try {
+            FileChannel fc = raf.getChannel();
+            int idle = 0;
+            for (;;) {
+                long size = fc.size();
+                if (pos < size) {
+                    int n = (int) Math.min(size - pos, BLOCK);
+                    header.clear();
+                    header.putInt(n).flip();
+                    writeFully(sc, header);
+                    for (long end = pos + n; pos < end;) {
+                        pos += fc.transferTo(pos, end - pos, sc);
+                    }
+                    idle = 0;
+                    continue;
+                }
+                if (s.isFailed()) {
+                    header.clear();
+                    header.putInt(FAILED).flip();
+                    writeFully(sc, header);
+                    LOG.warn("spill " + s.file + " failed, "
+                            + sc.socket().getRemoteSocketAddress()
+                            + " received " + pos + " bytes");
+                    return;
+                }
+                if (s.isComplete() && pos >= s.getSize()) {
+                    header.clear();
+                    header.putInt(END).putLong(s.getSize())
+                            .putLong(s.getCrc32()).flip();
+                    writeFully(sc, header);
+                    break;
+                }
+                if (!s.await(pos, POLL) && ++idle >= HEARTBEAT_POLLS) {
+                    // 命令长时间没有输出，客户端的读超时不会触发
+                    header.clear();
+                    header.putInt(HEARTBEAT).flip();
+                    writeFully(sc, header);
+                    idle = 0;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        // 完整发送之后才删除，中断的传输可以从断点重新读取
+        LOG.info("spill " + s.file + " sent to "
+                + sc.socket().getRemoteSocketAddress() + ", " + pos
+                + " bytes");
+        if (spills.remove(s.token) != null)
+            s.file.delete();
+    }
+
+    private static void writeFully(SocketChannel sc, ByteBuffer b)
+            throws IOException {
+        while (b.hasRemaining()) {
+            sc.write(b);
+        }
+    }
+
+    // 通过socket的InputStream读取，SO_TIMEOUT才会生效
+    private static String readToken(SocketChannel sc) throws IOException {
+        InputStream is = sc.socket().getInputStream();
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < MAX_TOKEN) {
+            int c = is.read();
+            if (c < 0)
+                return null;
+            if (c == '\n')
+                return sb.toString().trim();
+            sb.append((char) c);
+        }
+        return null;
+    }
+
+    // 删除命令结束后过期没有读完的文件
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Spill> it = spills.values().iterator(); it.hasNext();) {
+            Spill s = it.next();
+            if (s.isExpired(now)) {
+                LOG.info("spill " + s.file + " expired");
+                it.remove();
+                s.file.delete();
+            }
+        }
+    }
+
+    private static void close(SocketChannel sc) {
+        try {
+            if (sc != null)
+                sc.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * 登记的一个溢出文件，写入方通过它通知新的输出和结束
+     */
+    class Spill {
+        private final String token;
+        private final File file;
+        // 已经写到文件的字节数
+        private long written = 0;
+        // 结束时的总字节数和crc32，size为-1表示还在写入
+        private long size = -1;
+        private long crc32 = 0;
+        private boolean failed = false;
+        private long expireAt = Long.MAX_VALUE;
+
+        Spill(String token, File file) {
+            this.token = token;
+            this.file = file;
+        }
+
+        String getToken() {
+            return token;
+        }
+
+        /**
+         * 新的输出已经写到文件
+         *
+         * @param written
+         *            文件的总字节数
+         */
+        synchronized void written(long written) {
+            this.written = written;
+            notifyAll();
+        }
+
+        /**
+         * 输出写完，文件已经关闭
+         *
+         * @param size
+         * @param crc32
+         */
+        synchronized void complete(long size, long crc32) {
+            this.written = size;
+            this.size = size;
+            this.crc32 = crc32;
+            this.expireAt = System.currentTimeMillis() + ttl;
+            notifyAll();
+        }
+
+        /**
+         * 输出没有写完整(出错、取消或者客户端已经放弃)，正在读取的客户端收到FAILED
+         */
+        void abort() {
+            synchronized (this) {
+                failed = true;
+                notifyAll();
+            }
+            spills.remove(token);
+            file.delete();
+        }
+
+        synchronized boolean isComplete() {
+            return size >= 0;
+        }
+
+        synchronized boolean isFailed() {
+            return failed;
+        }
+
+        synchronized long getSize() {
+            return size;
+        }
+
+        synchronized long getCrc32() {
+            return crc32;
+        }
+
+        synchronized boolean isExpired(long now) {
+            return expireAt < now;
+        }
+
+        /**
+         * 等待写入位置超过pos或者结束
+         *
+         * @return boolean false表示超时
+         */
+        synchronized boolean await(long pos, long timeout)
+                throws InterruptedException {
+            if (written <= pos && size < 0 && !failed)
+                wait(timeout);
+            return written > pos || size >= 0 || failed;
+        }
+    }
+}
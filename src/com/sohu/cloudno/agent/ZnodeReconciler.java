@@ -0,0 +1,308 @@
+package com.sohu.cloudno.agent;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import com.sohu.cloudno.comm.ToolUtil;
+import com.sohu.cloudno.comm.ZooKeeperWatcher;
+
+/**
+ * 通过ZooKeeper的异步接口批量同步本机的group和instance节点
+ *
+ * <p>
+ * 每次调用提交一批同一层级的请求，请求以流水线方式发出，在途请求数不超过window，
+ * 整批请求全部返回(或者超时)后调用才返回。调用方按照"父节点 -> 子节点"的顺序逐批调用，
+ * 就能保证父节点先于子节点建立。
+ *
+ * <p>
+ * 所有方法返回本批中成功落到ZooKeeper上的节点，失败的节点留给下一轮同步重试。
+ */
+class ZnodeReconciler {
+    private static final Logger LOG = Logger.getLogger(ZnodeReconciler.class);
+    // 同时在途的异步请求数上限
+    private final int window;
+    // 等待一批请求返回的最长时间
+    private final long timeout;
+
+    /**
+     * @param window
+     *            同时在途的异步请求数上限
+     * @param timeout
+     *            等待一批请求全部返回的超时时间，单位milliseconds
+     */
+    ZnodeReconciler(int window, long timeout) {
+        this.window = window > 0 ? window : 1;
+        this.timeout = timeout;
+    }
+
+    /**
+     * 批量建立持久节点，节点已经存在也视为成功
+     *
+     * @param zkw
+     * @param nodes
+     *            节点路径和数据
+     * @return 成功的节点
+     * @throws InterruptedException
+     */
+    Set<String> createPersistent(ZooKeeperWatcher zkw, Map<String, byte[]> nodes)
+            throws InterruptedException {
+        final Batch batch = new Batch(nodes.size());
+        ZooKeeper zk = zkw.getZooKeeper();
+        StringCallback cb = new StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx,
+                    String name) {
+                batch.complete(path, rc == Code.OK.intValue()
+                        || rc == Code.NODEEXISTS.intValue(), rc);
+            }
+        };
+        for (Entry<String, byte[]> node : nodes.entrySet()) {
+            batch.acquire();
+            zk.create(node.getKey(), node.getValue(), Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT, cb, null);
+        }
+        return batch.await("create persistent");
+    }
+
+    /**
+     * 批量建立临时节点
+     *
+     * <p>
+     * 节点已经存在时检查它的owner：属于当前session的在数据不同时改为写入数据；属于已失效的旧session时，
+     * 如果旧节点已经被服务端清理则立即重建一次，否则留给下一轮重试，不再阻塞等待。
+     *
+     * @param zkw
+     * @param nodes
+     *            节点路径和数据
+     * @return 成功的节点
+     * @throws InterruptedException
+     */
+    Set<String> createEphemeral(ZooKeeperWatcher zkw, Map<String, byte[]> nodes)
+            throws InterruptedException {
+        Batch batch = new Batch(nodes.size());
+        ZooKeeper zk = zkw.getZooKeeper();
+        for (Entry<String, byte[]> node : nodes.entrySet()) {
+            batch.acquire();
+            new EphemeralCreate(zk, batch, node.getKey(), node.getValue())
+                    .submit();
+        }
+        return batch.await("create ephemeral");
+    }
+
+    /**
+     * 批量更新节点数据，不检查版本
+     *
+     * @param zkw
+     * @param nodes
+     *            节点路径和数据
+     * @return 成功的节点
+     * @throws InterruptedException
+     */
+    Set<String> setData(ZooKeeperWatcher zkw, Map<String, byte[]> nodes)
+            throws InterruptedException {
+        final Batch batch = new Batch(nodes.size());
+        ZooKeeper zk = zkw.getZooKeeper();
+        StatCallback cb = new StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx,
+                    Stat stat) {
+                batch.complete(path, rc == Code.OK.intValue(), rc);
+            }
+        };
+        for (Entry<String, byte[]> node : nodes.entrySet()) {
+            batch.acquire();
+            LOG.info("zkserver set data, znode=\"" + node.getKey()
+                    + "\",data=\"" + ToolUtil.toStr(node.getValue()) + "\"");
+            zk.setData(node.getKey(), node.getValue(), -1, cb, null);
+        }
+        return batch.await("set data");
+    }
+
+    /**
+     * 批量删除叶子节点，节点不存在也视为成功
+     *
+     * @param zkw
+     * @param nodes
+     *            节点路径
+     * @return 成功的节点
+     * @throws InterruptedException
+     */
+    Set<String> delete(ZooKeeperWatcher zkw, Collection<String> nodes)
+            throws InterruptedException {
+        final Batch batch = new Batch(nodes.size());
+        ZooKeeper zk = zkw.getZooKeeper();
+        VoidCallback cb = new VoidCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx) {
+                batch.complete(path, rc == Code.OK.intValue()
+                        || rc == Code.NONODE.intValue(), rc);
+            }
+        };
+        for (String node : nodes) {
+            batch.acquire();
+            LOG.info("zkserver delete node, znode=\"" + node + "\"");
+            zk.delete(node, -1, cb, null);
+        }
+        return batch.await("delete");
+    }
+
+    /**
+     * 批量读取节点数据，只返回存在并且属于本agent的节点：持久节点，或者当前session建立的临时节点
+     *
+     * @param zkw
+     * @param nodes
+     *            节点路径
+     * @return Map 节点路径和数据
+     * @throws InterruptedException
+     */
+    Map<String, byte[]> read(ZooKeeperWatcher zkw, Collection<String> nodes)
+            throws InterruptedException {
+        final Batch batch = new Batch(nodes.size());
+        final Map<String, byte[]> ret = new ConcurrentHashMap<String, byte[]>();
+        final ZooKeeper zk = zkw.getZooKeeper();
+        DataCallback cb = new DataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx,
+                    byte[] data, Stat stat) {
+                if (rc == Code.OK.intValue()
+                        && (stat.getEphemeralOwner() == 0 || stat
+                                .getEphemeralOwner() == zk.getSessionId())) {
+                    ret.put(path, data == null ? new byte[0] : data);
+                }
+                batch.complete(path, rc == Code.OK.intValue()
+                        || rc == Code.NONODE.intValue(), rc);
+            }
+        };
+        for (String node : nodes) {
+            batch.acquire();
+            zk.getData(node, false, cb, null);
+        }
+        batch.await("read");
+        return new HashMap<String, byte[]>(ret);
+    }
+
+    /**
+     * 一批异步请求的在途窗口和完成情况
+     */
+    private class Batch {
+        private final Semaphore inFlight = new Semaphore(window);
+        private final CountDownLatch pending;
+        private final Set<String> done = Collections
+                .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        Batch(int size) {
+            pending = new CountDownLatch(size);
+        }
+
+        void acquire() throws InterruptedException {
+            inFlight.acquire();
+        }
+
+        void complete(String path, boolean ok, int rc) {
+            if (ok) {
+                done.add(path);
+            } else if (rc != Code.OK.intValue()) {
+                LOG.warn("zkserver async request failed, znode=\"" + path
+                        + "\", code=" + Code.get(rc));
+            }
+            inFlight.release();
+            pending.countDown();
+        }
+
+        Set<String> await(String op) throws InterruptedException {
+            if (!pending.await(timeout, TimeUnit.MILLISECONDS)) {
+                LOG.warn(op + " timeout, " + pending.getCount()
+                        + " requests still pending");
+            }
+            return new HashSet<String>(done);
+        }
+    }
+
+    /**
+     * 单个临时节点的建立过程，处理节点已经存在的情况
+     */
+    private static class EphemeralCreate implements StringCallback,
+            DataCallback, StatCallback {
+        private final ZooKeeper zk;
+        private final Batch batch;
+        private final String path;
+        private final byte[] data;
+        private boolean retried = false;
+
+        EphemeralCreate(ZooKeeper zk, Batch batch, String path, byte[] data) {
+            this.zk = zk;
+            this.batch = batch;
+            this.path = path;
+            this.data = data;
+        }
+
+        void submit() {
+            LOG.info("zkserver create Ephemeral node, znode=\"" + path
+                    + "\", data=\"" + ToolUtil.toStr(data) + "\"");
+            zk.create(path, data, Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL,
+                    this, null);
+        }
+
+        // create的回调
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name) {
+            if (rc == Code.NODEEXISTS.intValue()) {
+                zk.getData(path, false, this, null);
+            } else {
+                batch.complete(path, rc == Code.OK.intValue(), rc);
+            }
+        }
+
+        // getData的回调
+        @Override
+        public void processResult(int rc, String path, Object ctx,
+                byte[] old, Stat stat) {
+            if (rc == Code.OK.intValue()
+                    && stat.getEphemeralOwner() == zk.getSessionId()) {
+                // 本session建立的节点，数据一致时不再写，避免触发多余的事件
+                if (Arrays.equals(old, data)) {
+                    batch.complete(path, true, rc);
+                } else {
+                    zk.setData(path, data, -1, this, null);
+                }
+            } else if (rc == Code.NONODE.intValue() && !retried) {
+                retried = true;
+                submit();
+            } else {
+                if (stat != null) {
+                    LOG.info("znode \"" + path + "\" is still owned by session 0x"
+                            + Long.toHexString(stat.getEphemeralOwner())
+                            + ", retry later");
+                }
+                batch.complete(path, false, rc);
+            }
+        }
+
+        // setData的回调
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            batch.complete(path, rc == Code.OK.intValue(), rc);
+        }
+    }
+}
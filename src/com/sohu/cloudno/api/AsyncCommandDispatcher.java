@@ -0,0 +1,458 @@
+package com.sohu.cloudno.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import com.sohu.cloudno.comm.CommandEnvelope;
+import com.sohu.cloudno.comm.OutputFrame;
+import com.sohu.cloudno.comm.ToolUtil;
+import com.sohu.cloudno.comm.ZKUtil;
+import com.sohu.cloudno.comm.ZooKeeperListener;
+import com.sohu.cloudno.comm.ZooKeeperWatcher;
+
+/**
+ * 异步执行远程命令，全部使用zk的异步接口和watch，不为每个命令占用线程
+ *
+ * <p>
+ * 命令用异步create写入input节点；每个有命令在执行的agent的output节点上设置一个子节点watch，
+ * 通知到达时异步列出子节点，按序号异步读取属于在途命令的节点，读完后异步删除。
+ * zk的回调在事件线程中执行，只做分发；解码输出、调用OutputCallback和完成CommandFuture
+ * 都在一个回调线程中按到达顺序执行。
+ *
+ * <p>
+ * dir布局的命令在自己的父节点output/cmd@id上设置watch，读完后删除父节点。
+ *
+ * <p>
+ * 一个命令超过timeout毫秒没有新的输出时以TimeoutException结束。
+ * 异步执行只从zk读取输出，不使用直连通道和溢出文件。
+ */
+class AsyncCommandDispatcher extends ZooKeeperListener {
+    private static final Logger LOG = Logger
+            .getLogger(AsyncCommandDispatcher.class);
+    // 检查超时的间隔
+    private static final long SWEEP_INTERVAL = 1000;
+    // output路径对应的在途命令
+    private final Map<String, Map<Long, Pending>> outputs = new ConcurrentHashMap<String, Map<Long, Pending>>();
+    // 已经发出getData、还没有删除的节点，避免重复读取
+    private final Set<String> reading = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ExecutorService callbacks;
+    private final ScheduledExecutorService sweeper;
+
+    AsyncCommandDispatcher(ZooKeeperWatcher zkw) {
+        super(zkw);
+        callbacks = Executors.newSingleThreadExecutor(daemon("CommandCallback"));
+        sweeper = Executors
+                .newSingleThreadScheduledExecutor(daemon("CommandTimeout"));
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        zkw.registerListener(this);
+    }
+
+    /**
+     * 提交命令，立即返回
+     *
+     * @param ip
+     * @param env
+     * @param callback
+     *            null表示输出收集到CommandOutcome中
+     * @return CommandFuture
+     */
+    CommandFuture submit(final String ip, CommandEnvelope env,
+            OutputCallback callback) {
+        final Pending p = new Pending(ip, env.getTimeout(), env.isOutputDir(),
+                callback, new CommandFuture(this, ip));
+        zkw.getZooKeeper().create(ZKUtil.getInputPath(ip) + "/cmd@",
+                ToolUtil.toByte(env.encode()), Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT_SEQUENTIAL, new StringCallback() {
+                    @Override
+                    public void processResult(int rc, String path,
+                            Object ctx, String name) {
+                        if (rc != Code.OK.intValue()) {
+                            p.future.fail(KeeperException.create(
+                                    Code.get(rc), path));
+                            return;
+                        }
+                        p.serialID = Long.parseLong(name.substring(name
+                                .lastIndexOf("@") + 1));
+                        p.future.setSerialID(p.serialID);
+                        p.touch();
+                        if (p.dir)
+                            createDir(p);
+                        register(p);
+                        // 写入之前已经取消
+                        if (p.future.isCancelled())
+                            cancel(p.future);
+                    }
+                }, null);
+        LOG.info("Execute command async: " + env);
+        return p.future;
+    }
+
+    /**
+     * 在agent上取消命令，输出读到EOF之前继续读取并丢弃
+     *
+     * @param future
+     */
+    void cancel(CommandFuture future) {
+        long serialID = future.getSerialID();
+        if (serialID < 0)
+            return;
+        zkw.getZooKeeper().create(
+                ZKUtil.getCancelPath(future.getIp(), serialID), new byte[0],
+                Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                new StringCallback() {
+                    @Override
+                    public void processResult(int rc, String path,
+                            Object ctx, String name) {
+                        if (rc != Code.OK.intValue()
+                                && rc != Code.NODEEXISTS.intValue())
+                            LOG.warn("can not cancel command, " + path + ", "
+                                    + Code.get(rc));
+                    }
+                }, null);
+    }
+
+    void shutdown() {
+        zkw.unregisterListener(this);
+        sweeper.shutdownNow();
+        callbacks.shutdownNow();
+    }
+
+    @Override
+    public void nodeChildrenChanged(String path) {
+        if (outputs.containsKey(path))
+            list(path);
+    }
+
+    @Override
+    public void connected(long sessionId) {
+        // 重新连接后补查一次，期间的通知可能丢失
+        for (String path : outputs.keySet()) {
+            list(path);
+        }
+    }
+
+    @Override
+    public void sessionExpired() {
+        for (Map<Long, Pending> m : outputs.values()) {
+            for (Pending p : m.values()) {
+                p.fail(new KeeperException.SessionExpiredException());
+            }
+        }
+    }
+
+    // 和agent谁先到谁建立；请求按顺序执行，之后的getChildren能看到父节点
+    private void createDir(Pending p) {
+        zkw.getZooKeeper().create(ZKUtil.getOutputRetPath(p.ip, p.serialID),
+                new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                new StringCallback() {
+                    @Override
+                    public void processResult(int rc, String path,
+                            Object ctx, String name) {
+                        if (rc != Code.OK.intValue()
+                                && rc != Code.NODEEXISTS.intValue())
+                            LOG.warn("can not create " + path + ", "
+                                    + Code.get(rc));
+                    }
+                }, null);
+    }
+
+    private void register(Pending p) {
+        String path = p.watchPath();
+        synchronized (outputs) {
+            Map<Long, Pending> m = outputs.get(path);
+            if (m == null) {
+                m = new ConcurrentHashMap<Long, Pending>();
+                outputs.put(path, m);
+            }
+            m.put(p.serialID, p);
+        }
+        // 输出可能在create返回之前就已经写出
+        list(path);
+    }
+
+    private void unregister(Pending p) {
+        String path = p.watchPath();
+        synchronized (outputs) {
+            Map<Long, Pending> m = outputs.get(path);
+            if (m != null) {
+                m.remove(p.serialID);
+                if (m.isEmpty())
+                    outputs.remove(path);
+            }
+        }
+    }
+
+    // 列出子节点并重新设置watch
+    private void list(final String path) {
+        zkw.getZooKeeper().getChildren(path, true, new ChildrenCallback() {
+            @Override
+            public void processResult(int rc, String p, Object ctx,
+                    List<String> children) {
+                if (rc == Code.OK.intValue())
+                    read(path, children);
+                else
+                    LOG.warn("can not list " + path + ", " + Code.get(rc));
+            }
+        }, null);
+    }
+
+    // 按命令和序号顺序读取属于在途命令的节点
+    private void read(String path, List<String> children) {
+        Map<Long, Pending> m = outputs.get(path);
+        if (m == null)
+            return;
+        List<OutputNode> mine = new ArrayList<OutputNode>();
+        for (String child : children) {
+            OutputNode n = OutputNode.parse(path, child, m);
+            if (n != null)
+                mine.add(n);
+        }
+        Collections.sort(mine);
+        ZooKeeper zk = zkw.getZooKeeper();
+        for (OutputNode n : mine) {
+            if (!reading.add(n.path))
+                continue;
+            final Pending p = n.pending;
+            zk.getData(n.path, false, new DataCallback() {
+                @Override
+                public void processResult(int rc, String node, Object ctx,
+                        byte[] data, Stat stat) {
+                    if (rc == Code.OK.intValue()) {
+                        // 先发出删除，EOF之后删除父节点的请求排在它后面
+                        delete(node);
+                        p.deliver(data);
+                    } else {
+                        reading.remove(node);
+                    }
+                }
+            }, null);
+        }
+    }
+
+    private void delete(final String node) {
+        zkw.getZooKeeper().delete(node, -1, new VoidCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx) {
+                if (rc == Code.OK.intValue() || rc == Code.NONODE.intValue()) {
+                    reading.remove(node);
+                    return;
+                }
+                // 交给后台重试，节点留在reading中不会被再读一次
+                OutputCleaner.delete(zkw, Collections.singletonList(node));
+            }
+        }, null);
+    }
+
+    // 没有新输出的时间超过timeout的命令以超时结束
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Map<Long, Pending> m : outputs.values()) {
+            for (Pending p : m.values()) {
+                if (p.timeout > 0 && now - p.lastActivity > p.timeout)
+                    p.fail(new TimeoutException("no output from " + p.ip
+                            + " for command " + p.serialID + " in "
+                            + p.timeout + "ms"));
+            }
+        }
+    }
+
+    /**
+     * 属于在途命令的一个输出节点，按命令和序号排序
+     */
+    private static class OutputNode implements Comparable<OutputNode> {
+        private final String path;
+        private final Pending pending;
+        private final int index;
+
+        OutputNode(String path, Pending pending, int index) {
+            this.path = path;
+            this.pending = pending;
+            this.index = index;
+        }
+
+        /**
+         * 平铺布局的节点是output/cmd@id_i，dir布局的节点是output/cmd@id/i
+         *
+         * @return OutputNode null表示不是在途命令的输出节点
+         */
+        static OutputNode parse(String parent, String child,
+                Map<Long, Pending> m) {
+            try {
+                if (child.startsWith("cmd@")) {
+                    int us = child.lastIndexOf('_');
+                    if (us < 0)
+                        return null;
+                    Pending p = m.get(Long.parseLong(child.substring(4, us)));
+                    if (p == null || p.dir)
+                        return null;
+                    return new OutputNode(ZKUtil.joinZNode(parent, child), p,
+                            Integer.parseInt(child.substring(us + 1)));
+                }
+                // dir布局的父节点下只有一个命令，还有ack节点
+                for (Pending p : m.values()) {
+                    if (p.dir)
+                        return new OutputNode(ZKUtil.joinZNode(parent, child),
+                                p, Integer.parseInt(child));
+                }
+            } catch (NumberFormatException e) {
+            }
+            return null;
+        }
+
+        @Override
+        public int compareTo(OutputNode o) {
+            long s1 = pending.serialID;
+            long s2 = o.pending.serialID;
+            if (s1 != s2)
+                return s1 < s2 ? -1 : 1;
+            return index < o.index ? -1 : (index == o.index ? 0 : 1);
+        }
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * 一个在途的命令
+     */
+    private class Pending {
+        private final String ip;
+        private final int timeout;
+        // 输出在自己的父节点output/cmd@id下
+        private final boolean dir;
+        private final OutputCallback callback;
+        private final CommandFuture future;
+        private final List<String> lines = new ArrayList<String>();
+        private volatile long serialID = -1;
+        private volatile long lastActivity;
+        private boolean finished = false;
+
+        Pending(String ip, int timeout, boolean dir, OutputCallback callback,
+                CommandFuture future) {
+            this.ip = ip;
+            this.timeout = timeout;
+            this.dir = dir;
+            this.callback = callback;
+            this.future = future;
+        }
+
+        String watchPath() {
+            return dir ? ZKUtil.getOutputRetPath(ip, serialID) : ZKUtil
+                    .getOutputPath(ip);
+        }
+
+        void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        // zk事件线程中调用，交给回调线程处理
+        void deliver(final byte[] data) {
+            touch();
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decode(data);
+                }
+            });
+        }
+
+        void fail(final Throwable error) {
+            unregister(this);
+            // 清理没有读取的节点
+            if (dir)
+                OutputCleaner.deleteTree(zkw, watchPath());
+            else
+                OutputCleaner.deleteMatching(zkw, watchPath(), "cmd@"
+                        + serialID + "_");
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    finished = true;
+                    future.fail(error);
+                }
+            });
+        }
+
+        // 回调线程中执行
+        private void decode(byte[] data) {
+            if (finished)
+                return;
+            if (!OutputFrame.isFrame(data)) {
+                String line = ToolUtil.toStr(data);
+                if (line.equals("EOF"))
+                    finish(null);
+                else
+                    line(line);
+            } else if ((OutputFrame.getFlags(data) & OutputFrame.CHUNK) != 0) {
+                for (String line : OutputFrame.getLines(data)) {
+                    line(line);
+                }
+            } else if ((OutputFrame.getFlags(data) & OutputFrame.END) != 0) {
+                finish(OutputFrame.getExitValue(data));
+            } else {
+                LOG.warn("ignore unsupported output frame of command "
+                        + serialID + " on " + ip);
+            }
+        }
+
+        // 读到EOF或者END帧，exitValue为null表示agent没有返回退出码
+        private void finish(Integer exitValue) {
+            finished = true;
+            unregister(this);
+            if (dir)
+                OutputCleaner.deleteTree(zkw, watchPath());
+            future.complete(new CommandOutcome(ip, serialID, lines, exitValue));
+        }
+
+        private void line(String line) {
+            if (future.isCancelled())
+                return;
+            if (callback == null) {
+                lines.add(line);
+                return;
+            }
+            try {
+                callback.onLine(serialID, line);
+            } catch (RuntimeException e) {
+                LOG.warn("output callback of command " + serialID
+                        + " failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.sohu.cloudno.api;
+
+/**
+ * 广播命令每完成一台主机调用一次，在回调线程中执行，不能长时间阻塞
+ */
+public interface BroadcastListener {
+    void onResult(HostResult result);
+}
@@ -0,0 +1,218 @@
+package com.sohu.cloudno.api;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.server.quorum.QuorumPeerConfig.ConfigException;
+
+import com.sohu.cloudno.comm.CommandEnvelope;
+import com.sohu.cloudno.comm.Constant;
+
+/**
+ * 一个命令在多台主机上执行的汇总结果
+ *
+ * <p>
+ * 同时在途的命令不超过concurrency个，一台主机完成后再提交下一台，
+ * 一台主机失败不影响其他主机。全部主机完成后await()返回。
+ */
+public class BroadcastReport {
+    private static final Logger LOG = Logger.getLogger(BroadcastReport.class);
+    private final RemoteCommand rc;
+    private final CommandEnvelope env;
+    private final BroadcastListener listener;
+    private final List<String> ips;
+    private final List<HostResult> results = new ArrayList<HostResult>();
+    private final List<CommandFuture> running = new ArrayList<CommandFuture>();
+    // 下一个要提交的主机
+    private int next = 0;
+    private boolean cancelled = false;
+
+    BroadcastReport(RemoteCommand rc, Collection<String> ips,
+            CommandEnvelope env, BroadcastListener listener) {
+        this.rc = rc;
+        this.env = env;
+        this.listener = listener;
+        this.ips = new ArrayList<String>(new LinkedHashSet<String>(ips));
+    }
+
+    void start(int concurrency) {
+        for (int i = 0; i < Math.max(1, concurrency); i++) {
+            launch();
+        }
+    }
+
+    /**
+     * @return List 已经完成的主机的结果，按完成的顺序
+     */
+    public synchronized List<HostResult> getResults() {
+        return new ArrayList<HostResult>(results);
+    }
+
+    public synchronized int getCompleted() {
+        return results.size();
+    }
+
+    public int getTotal() {
+        return ips.size();
+    }
+
+    public synchronized boolean isDone() {
+        return results.size() == ips.size();
+    }
+
+    /**
+     * 等待全部主机完成
+     *
+     * @param timeout
+     * @param unit
+     * @return boolean false表示等待超时
+     * @throws InterruptedException
+     */
+    public synchronized boolean await(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!isDone()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                return false;
+            wait(left);
+        }
+        return true;
+    }
+
+    public synchronized void await() throws InterruptedException {
+        while (!isDone())
+            wait();
+    }
+
+    /**
+     * 不再提交新的主机，并取消在途的命令；没有提交的主机记为CANCELLED
+     */
+    public void cancel() {
+        List<CommandFuture> fs;
+        List<String> rest;
+        synchronized (this) {
+            if (cancelled)
+                return;
+            cancelled = true;
+            fs = new ArrayList<CommandFuture>(running);
+            rest = ips.subList(next, ips.size());
+            next = ips.size();
+        }
+        for (String ip : rest) {
+            record(new HostResult(ip, -1, HostResult.Status.CANCELLED, null,
+                    null));
+        }
+        for (CommandFuture f : fs) {
+            f.cancel(true);
+        }
+    }
+
+    /**
+     * @return Map 每种状态的主机数
+     */
+    public synchronized Map<HostResult.Status, Integer> getSummary() {
+        Map<HostResult.Status, Integer> m = new EnumMap<HostResult.Status, Integer>(
+                HostResult.Status.class);
+        for (HostResult r : results) {
+            Integer n = m.get(r.getStatus());
+            m.put(r.getStatus(), n == null ? 1 : n + 1);
+        }
+        return m;
+    }
+
+    @Override
+    public String toString() {
+        return "broadcast \"" + env.getCmd() + "\" " + getCompleted() + "/"
+                + getTotal() + " " + getSummary();
+    }
+
+    // 提交下一台主机
+    private void launch() {
+        String ip;
+        synchronized (this) {
+            if (cancelled || next >= ips.size())
+                return;
+            ip = ips.get(next++);
+        }
+        final CommandFuture f;
+        try {
+            f = rc.runAsync(ip, env, null);
+        } catch (ConfigException e) {
+            record(new HostResult(ip, -1, HostResult.Status.ERROR, null, e));
+            launch();
+            return;
+        }
+        synchronized (this) {
+            running.add(f);
+        }
+        f.addListener(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BroadcastReport.this) {
+                    running.remove(f);
+                }
+                record(result(f));
+                launch();
+            }
+        });
+    }
+
+    private void record(HostResult r) {
+        synchronized (this) {
+            results.add(r);
+            notifyAll();
+        }
+        if (r.getStatus() != HostResult.Status.OK)
+            LOG.warn("broadcast \"" + env.getCmd() + "\": " + r);
+        if (listener == null)
+            return;
+        try {
+            listener.onResult(r);
+        } catch (RuntimeException e) {
+            LOG.warn("broadcast listener failed", e);
+        }
+    }
+
+    // 由agent写出的标记行区分取消和拒绝，再按退出码区分成功和失败；没有退出码时只能记为OK
+    private static HostResult result(CommandFuture f) {
+        try {
+            CommandOutcome o = f.get();
+            List<String> lines = o.getLines();
+            String last = lines.isEmpty() ? null : lines.get(lines.size() - 1);
+            HostResult.Status status = HostResult.Status.OK;
+            if (Constant.JA_CANCELLED.equals(last))
+                status = HostResult.Status.CANCELLED;
+            else if (Constant.JA_REJECTED.equals(last))
+                status = HostResult.Status.REJECTED;
+            else if (o.getExitValue() != null && o.getExitValue() != 0)
+                status = HostResult.Status.FAILED;
+            return new HostResult(f.getIp(), o.getSerialID(), status, lines,
+                    o.getExitValue(), null);
+        } catch (CancellationException e) {
+            return new HostResult(f.getIp(), f.getSerialID(),
+                    HostResult.Status.CANCELLED, null, null);
+        } catch (ExecutionException e) {
+            HostResult.Status status = e.getCause() instanceof TimeoutException ? HostResult.Status.TIMEOUT
+                    : HostResult.Status.ERROR;
+            return new HostResult(f.getIp(), f.getSerialID(), status, null, e
+                    .getCause());
+        } catch (InterruptedException e) {
+            // 监听器在future完成后才调用，get()不会等待
+            Thread.currentThread().interrupt();
+            return new HostResult(f.getIp(), f.getSerialID(),
+                    HostResult.Status.ERROR, Collections.<String> emptyList(),
+                    e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.sohu.cloudno.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 异步执行的命令，完成时调用登记的listener
+ * 
+ * <p>
+ * cancel()同时在agent上取消命令，之后到达的输出被丢弃
+ */
+public class CommandFuture implements Future<CommandOutcome> {
+    private final AsyncCommandDispatcher dispatcher;
+    private final String ip;
+    // 命令写入input节点后才知道序列号，-1表示还没有写入
+    private volatile long serialID = -1;
+    private CommandOutcome outcome = null;
+    private Throwable error = null;
+    private boolean cancelled = false;
+    private boolean done = false;
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+
+    CommandFuture(AsyncCommandDispatcher dispatcher, String ip) {
+        this.dispatcher = dispatcher;
+        this.ip = ip;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    /**
+     * @return long 命令的序列号，-1表示还没有写入input节点
+     */
+    public long getSerialID() {
+        return serialID;
+    }
+
+    void setSerialID(long serialID) {
+        this.serialID = serialID;
+    }
+
+    /**
+     * 登记完成时的回调，已经完成时立即在当前线程调用
+     * 
+     * @param listener
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done)
+                return false;
+            cancelled = true;
+        }
+        dispatcher.cancel(this);
+        finish();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done || cancelled;
+    }
+
+    @Override
+    public synchronized CommandOutcome get() throws InterruptedException,
+            ExecutionException {
+        while (!isDone())
+            wait();
+        return report();
+    }
+
+    @Override
+    public synchronized CommandOutcome get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!isDone()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                throw new TimeoutException();
+            wait(left);
+        }
+        return report();
+    }
+
+    void complete(CommandOutcome outcome) {
+        synchronized (this) {
+            if (isDone())
+                return;
+            this.outcome = outcome;
+        }
+        finish();
+    }
+
+    void fail(Throwable error) {
+        synchronized (this) {
+            if (isDone())
+                return;
+            this.error = error;
+        }
+        finish();
+    }
+
+    private void finish() {
+        List<Runnable> ls;
+        synchronized (this) {
+            if (done)
+                return;
+            done = true;
+            notifyAll();
+            ls = listeners;
+            listeners = null;
+        }
+        for (Runnable l : ls) {
+            l.run();
+        }
+    }
+
+    private CommandOutcome report() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException();
+        if (error != null)
+            throw new ExecutionException(error);
+        return outcome;
+    }
+}
@@ -0,0 +1,47 @@
+package com.sohu.cloudno.api;
+
+import java.util.List;
+
+/**
+ * 异步执行的命令的结果
+ */
+public class CommandOutcome {
+    private final String ip;
+    private final long serialID;
+    private final List<String> lines;
+    private final Integer exitValue;
+
+    CommandOutcome(String ip, long serialID, List<String> lines,
+            Integer exitValue) {
+        this.ip = ip;
+        this.serialID = serialID;
+        this.lines = lines;
+        this.exitValue = exitValue;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public long getSerialID() {
+        return serialID;
+    }
+
+    /**
+     * 命令的全部输出，使用OutputCallback时为空
+     * 
+     * @return List
+     */
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * 命令的退出码
+     * 
+     * @return Integer null表示agent没有在zk上写出带退出码的END帧
+     */
+    public Integer getExitValue() {
+        return exitValue;
+    }
+}
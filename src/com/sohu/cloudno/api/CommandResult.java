@@ -1,91 +1,390 @@
 package com.sohu.cloudno.api;
 
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
 
+import com.sohu.cloudno.comm.OutputFrame;
+import com.sohu.cloudno.comm.SpillDescriptor;
 import com.sohu.cloudno.comm.ToolUtil;
 import com.sohu.cloudno.comm.ZKUtil;
+import com.sohu.cloudno.comm.ZooKeeperListener;
 import com.sohu.cloudno.comm.ZooKeeperWatcher;
 
+/**
+ * 远程命令的执行结果
+ * 
+ * <p>
+ * 在output节点上设置子节点watch，有新节点时才重新列出子节点并读取本命令的节点，
+ * 等待期间不向zk发出请求。读到EOF或者调用close()后不再接收通知，关闭后readLine()返回null。
+ * 
+ * <p>
+ * 命令使用dir布局时，watch和列出的是命令自己的父节点output/cmd@id，
+ * 代价和同一台主机上其他命令的输出无关；读完后删除父节点。
+ */
 public class CommandResult {
     private static final Logger LOG = Logger.getLogger(CommandResult.class);
     private ZooKeeperWatcher zkw;
     private String ip;
     private long serialID;
     private int timeout;
-    private String outputRetPath;
-    private TreeMap<Integer, String> treeMap = new TreeMap<Integer, String>();
+    // 输出节点路径中序号之前的部分
+    private String nodePrefix;
+    private boolean dir;
+    // 已经交给OutputCleaner清理剩余的节点
+    private boolean cleaned = false;
+    // 调用过close()，不能再读取
+    private volatile boolean closed = false;
+    private TreeMap<Integer, byte[]> treeMap = new TreeMap<Integer, byte[]>();
+    // 已经从分块中解出、还没有返回的行
+    private LinkedList<String> lines = new LinkedList<String>();
+    // 已经读到结束标志EOF
+    private boolean eof = false;
+    // 正在读取的agent本地溢出输出
+    private volatile SpillReader spill = null;
+    // agent直连推送输出的通道，null表示只从zk读取
+    private DirectChannel direct = null;
+    // 命令的退出码，只有直连通道能够得到
+    private Integer exitValue = null;
+    // 设置watch并列出的节点
+    private String outputPath;
+    // outputPath下本命令的节点名中序号之前的部分
+    private String prefix;
+    private OutputWatch watch;
+    // 上一次列出子节点时watch的通知计数，-1表示还没有列出过
+    private long seen = -1;
 
     public CommandResult(ZooKeeperWatcher zkw, String ip, long serialID,int timeout) {
+        this(zkw, ip, serialID, timeout, null, false);
+    }
+
+    CommandResult(ZooKeeperWatcher zkw, String ip, long serialID,
+            int timeout, DirectChannel direct, boolean dir) {
         this.zkw = zkw;
         this.ip = ip;
         this.serialID = serialID;
         this.timeout = timeout;
-        this.outputRetPath = ZKUtil.getOutputRetPath(this.ip, this.serialID);
+        this.direct = direct;
+        this.dir = dir;
+        this.nodePrefix = ZKUtil.getOutputNodePrefix(ip, serialID, dir);
+        if (dir) {
+            this.outputPath = ZKUtil.getOutputRetPath(ip, serialID);
+            this.prefix = "";
+        } else {
+            this.outputPath = ZKUtil.getOutputPath(ip);
+            this.prefix = "cmd@" + serialID + "_";
+        }
+        this.watch = new OutputWatch(zkw);
+        zkw.registerListener(watch);
+    }
+
+    /**
+     * 命令的序列号，用于{@link RemoteCommand#cancel(String, long)}
+     * 
+     * @return long
+     */
+    public long getSerialID() {
+        return serialID;
+    }
+
+    /**
+     * 命令的退出码，在readLine()返回null之后有效
+     * 
+     * @return Integer null表示agent没有通过直连通道或者zk上的END帧返回退出码
+     */
+    public Integer getExitValue() {
+        return exitValue;
     }
 
     /**
-     * 检查output上是否已有远程执行结果
+     * 检查output上是否已有远程执行结果，超时的结果被关闭，之后readLine()返回null
      * 
-     * @return int
+     * @return int 0表示已有结果，-1表示超时、被中断或者已经关闭
      * @throws KeeperException
      */
     public int getStat() throws KeeperException {
-        int stat = 0;
-        int sleeptime = 1000;
-        int time = 0;
-        while (time < timeout) {
-            if (ZKUtil.checkExists(zkw, outputRetPath + "_0") == -1) {
-                stat = -1;
-            } else {
-                stat = 0;
-                break;
+        if (closed)
+            return -1;
+        if (timeout <= 0)
+            return 0;
+        long deadline = System.currentTimeMillis() + timeout;
+        for (;;) {
+            // 直连通道上agent已经连上也表示有结果
+            if (direct != null && direct.isConnected())
+                return 0;
+            if (watch.changed(seen) && !listOutput().isEmpty()) {
+                // 已经列出的节点留给readLine读取
+                seen = -1;
+                return 0;
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                close();
+                return -1;
+            }
+            try {
+                if (direct != null)
+                    direct.accept((int) Math.min(200, left));
+                else
+                    watch.await(seen, left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                return -1;
             }
-            ToolUtil.sleep(sleeptime);
-            time += sleeptime;
         }
-        return stat;
+    }
+
+    /**
+     * 不再读取结果时调用，停止接收output节点的通知；正在等待的readLine()返回null
+     */
+    public void close() {
+        closed = true;
+        zkw.unregisterListener(watch);
+        watch.close();
+        if (direct != null) {
+            direct.close();
+            direct = null;
+        }
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+        cleanup();
     }
 
     /**
      * 按行读取命令执行结果
      * 
-     * @return String
+     * @return String null表示读完、等待时被中断或者已经关闭
      * @throws KeeperException
      */
     public String readLine() throws KeeperException {
-        // 获取output节点上的记录
-        while (treeMap.isEmpty()) {
-            List<String> children = ZKUtil.lsChildrenNoWatch(zkw,ZKUtil.getOutputPath(ip));
+        while (lines.isEmpty()) {
+            if (closed)
+                return null;
+            // close()可能在另一个线程中置空
+            SpillReader reader = spill;
+            if (reader != null) {
+                String line = reader.readLine();
+                if (line != null)
+                    return line;
+                spill = null;
+            }
+            if (eof) {
+                zkw.unregisterListener(watch);
+                cleanup();
+                return null;
+            }
+            if (direct != null) {
+                readDirect();
+                continue;
+            }
+            byte[] data = readNode();
+            if (data == null)
+                return null;
+            if (!OutputFrame.isFrame(data)) {
+                // 旧格式每个节点一行，EOF节点表示结束
+                String line = ToolUtil.toStr(data);
+                if (line.equals("EOF"))
+                    eof = true;
+                else
+                    lines.add(line);
+            } else if ((OutputFrame.getFlags(data) & OutputFrame.CHUNK) != 0) {
+                lines.addAll(OutputFrame.getLines(data));
+            } else if ((OutputFrame.getFlags(data) & OutputFrame.SPILL) != 0) {
+                spill = new SpillReader(SpillDescriptor.parse(OutputFrame
+                        .getPayload(data)));
+            } else if ((OutputFrame.getFlags(data) & OutputFrame.END) != 0) {
+                exitValue = OutputFrame.getExitValue(data);
+                eof = true;
+            }
+        }
 
-            for (String child : children) {
-                if (!child.startsWith("cmd@" + serialID + "_")){
-                    continue;
-                }                    
-                int key = Integer.parseInt(child.substring(child.lastIndexOf("_") + 1));
-                String outputRetPathSeq = outputRetPath + "_" + key;
-                String data = ToolUtil.toStr(ZKUtil.getDataNoWatch(zkw,outputRetPathSeq));
-                if (data == null){
+        String value = lines.removeFirst();
+        LOG.info("Command result: " + value);
+        return value;
+    }
+
+    /**
+     * 从直连通道读取一帧；agent连不上客户端时会改写zk，所以等待连接期间同时检查output节点
+     * 
+     * @throws KeeperException
+     */
+    private void readDirect() throws KeeperException {
+        if (!direct.isConnected()) {
+            if (!direct.accept(200) && watch.changed(seen)
+                    && !listOutput().isEmpty()) {
+                seen = -1;
+                direct.close();
+                direct = null;
+            }
+            return;
+        }
+        byte[] data = direct.readFrame();
+        if (data == null) {
+            // 通道中途断开，剩余的输出由agent写到zk
+            direct = null;
+            return;
+        }
+        if ((OutputFrame.getFlags(data) & OutputFrame.CHUNK) != 0) {
+            lines.addAll(OutputFrame.getLines(data));
+        } else if ((OutputFrame.getFlags(data) & OutputFrame.END) != 0) {
+            exitValue = OutputFrame.getExitValue(data);
+            direct.close();
+            direct = null;
+            eof = true;
+        }
+    }
+
+    /**
+     * 按序号读取下一个输出节点的数据，没有新节点时等待watch通知
+     * 
+     * @return byte[] null表示等待时被中断或者已经关闭
+     * @throws KeeperException
+     */
+    private byte[] readNode() throws KeeperException {
+        while (treeMap.isEmpty()) {
+            if (closed)
+                return null;
+            if (!watch.changed(seen)) {
+                try {
+                    watch.await(seen, 0);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                continue;
+            }
+            List<String> read = new ArrayList<String>();
+            for (String child : listOutput()) {
+                int key = Integer.parseInt(child.substring(prefix.length()));
+                String node = nodePrefix + key;
+                byte[] data = ZKUtil.getDataNoWatch(zkw, node);
+                if (data == null) {
                     continue;
-                }                    
+                }
                 treeMap.put(key, data);
-                ZKUtil.delNodeRecursively(zkw, outputRetPathSeq);
+                read.add(node);
             }
-            ToolUtil.sleep(3);
+            // 在后台删除，读取不等待
+            OutputCleaner.delete(zkw, read);
         }
 
-        // 读取一行记录并返回
+        // 读取一个节点的记录并返回
         int key = treeMap.firstKey();
-        String value = treeMap.get(key);
+        return treeMap.remove(key);
+    }
+
+    /**
+     * 列出本命令的输出节点，同时设置子节点watch
+     * 
+     * @return List 节点名
+     * @throws KeeperException
+     */
+    private List<String> listOutput() throws KeeperException {
+        // 先记下计数再列出，列出期间到达的通知不会丢失
+        seen = watch.changes();
+        List<String> ret = new ArrayList<String>();
+        List<String> children = ZKUtil.lsChildrenAndWatchForNewChildren(zkw,
+                outputPath);
+        if (children == null)
+            return ret;
+        for (String child : children) {
+            // dir布局下父节点里还有ack节点
+            if (child.startsWith(prefix)
+                    && isIndex(child.substring(prefix.length())))
+                ret.add(child);
+        }
+        return ret;
+    }
 
-        treeMap.remove(key);
-        if (value.equals("EOF")) {
-            return null;
+    private static boolean isIndex(String s) {
+        if (s.length() == 0)
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    // 清理命令剩余的节点：dir布局删除整个父节点，平铺布局没有读完时删除本命令的节点。
+    // 命令还在运行时之后写出的节点由agent在命令结束output.ttl之后删除
+    private void cleanup() {
+        if (cleaned)
+            return;
+        cleaned = true;
+        if (dir)
+            OutputCleaner.deleteTree(zkw, outputPath);
+        else if (!eof)
+            OutputCleaner.deleteMatching(zkw, outputPath, prefix);
+    }
+
+    /**
+     * output节点的子节点变化通知，重新连接后watch可能丢失，也作为一次变化
+     */
+    private class OutputWatch extends ZooKeeperListener {
+        private long changes = 0;
+        private boolean closed = false;
+
+        OutputWatch(ZooKeeperWatcher zkw) {
+            super(zkw);
+        }
+
+        @Override
+        public synchronized void nodeChildrenChanged(String path) {
+            if (path.equals(outputPath)) {
+                changes++;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized void connected(long sessionId) {
+            changes++;
+            notifyAll();
+        }
+
+        synchronized long changes() {
+            return changes;
+        }
+
+        synchronized boolean changed(long since) {
+            return since < 0 || changes != since;
+        }
+
+        // 结果被关闭，唤醒等待的读取方
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        /**
+         * 等待计数变化
+         * 
+         * @param since
+         * @param timeout
+         *            单位milliseconds，0表示一直等待
+         * @throws InterruptedException
+         */
+        synchronized void await(long since, long timeout)
+                throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (changes == since && !closed) {
+                if (timeout <= 0) {
+                    wait();
+                } else {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0)
+                        return;
+                    wait(left);
+                }
+            }
         }
-        LOG.info("Command result: " + value);
-        return value;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,374 @@
+package com.sohu.cloudno.api;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+
+import com.sohu.cloudno.comm.OutputFrame;
+import com.sohu.cloudno.comm.SpillDescriptor;
+import com.sohu.cloudno.comm.ToolUtil;
+import com.sohu.cloudno.comm.ZKUtil;
+import com.sohu.cloudno.comm.ZooKeeperListener;
+import com.sohu.cloudno.comm.ZooKeeperWatcher;
+
+/**
+ * 按行流式读取命令输出，内存占用和输出总量无关
+ *
+ * <p>
+ * 只预取序号在[next, next+window)内的输出节点：列出子节点后对窗口内的节点异步getData，
+ * 多个请求同时在途，只等待一次往返。每消费window/2个节点就把已消费的节点数写到output/ack@id，
+ * agent在确认之前不会写出窗口之外的节点，zk上的节点数和agent的内存也因此有界。
+ *
+ * <p>
+ * dir布局下watch和列出的是命令自己的父节点，确认节点也在其中，close()时连同父节点一起删除。
+ *
+ * <p>
+ * 超过timeout毫秒没有新的输出、zk或者溢出文件读取失败时，hasNext()抛出IllegalStateException，
+ * 因为Iterator的接口不能声明受检异常。读完或者不再读取时调用close()。
+ */
+public class CommandStream implements Iterator<String> {
+    private static final Logger LOG = Logger.getLogger(CommandStream.class);
+    private final ZooKeeperWatcher zkw;
+    private final String ip;
+    private final long serialID;
+    private final int timeout;
+    private final int window;
+    // 设置watch并列出的节点
+    private final String outputPath;
+    // outputPath下本命令的节点名中序号之前的部分
+    private final String prefix;
+    private final boolean dir;
+    private final String ackPath;
+    private final OutputWatch watch;
+    // 已经到达、还没有消费的节点
+    private final Map<Integer, byte[]> arrived = new HashMap<Integer, byte[]>();
+    // 已经发出getData、还没有返回的节点
+    private final Set<Integer> requested = new HashSet<Integer>();
+    // 最近一次列出的本命令的节点序号
+    private TreeSet<Integer> listed = new TreeSet<Integer>();
+    // 下一个要消费的节点序号
+    private int next = 0;
+    // 已经确认给agent的节点数
+    private int acked = 0;
+    private boolean ackCreated = false;
+    private long lastActivity = System.currentTimeMillis();
+    private Throwable error = null;
+    private final LinkedList<String> lines = new LinkedList<String>();
+    private SpillReader spill = null;
+    private boolean eof = false;
+    private Integer exitValue = null;
+    private boolean closed = false;
+
+    CommandStream(ZooKeeperWatcher zkw, String ip, long serialID,
+            int timeout, int window, boolean dir) {
+        this.zkw = zkw;
+        this.ip = ip;
+        this.serialID = serialID;
+        this.timeout = timeout;
+        this.window = window;
+        this.dir = dir;
+        if (dir) {
+            this.outputPath = ZKUtil.getOutputRetPath(ip, serialID);
+            this.prefix = "";
+        } else {
+            this.outputPath = ZKUtil.getOutputPath(ip);
+            this.prefix = "cmd@" + serialID + "_";
+        }
+        this.ackPath = ZKUtil.getAckPath(ip, serialID, dir);
+        this.watch = new OutputWatch(zkw);
+        zkw.registerListener(watch);
+        list();
+    }
+
+    public long getSerialID() {
+        return serialID;
+    }
+
+    /**
+     * 命令的退出码，在hasNext()返回false之后有效
+     * 
+     * @return Integer null表示agent没有在zk上写出带退出码的END帧
+     */
+    public Integer getExitValue() {
+        return exitValue;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (lines.isEmpty()) {
+            if (spill != null) {
+                String line = spill.readLine();
+                if (line != null) {
+                    lines.add(line);
+                    return true;
+                }
+                spill = null;
+            }
+            if (eof) {
+                close();
+                return false;
+            }
+            decode(take());
+        }
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return lines.removeFirst();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 停止读取，删除ack节点；没有读完时agent在output.window.stall之后不再等待确认
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        zkw.unregisterListener(watch);
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+        if (dir) {
+            // 连同ack节点和没有读取的节点
+            OutputCleaner.deleteTree(zkw, outputPath);
+            return;
+        }
+        if (ackCreated)
+            OutputCleaner.delete(zkw, Collections.singletonList(ackPath));
+        if (!eof)
+            OutputCleaner.deleteMatching(zkw, outputPath, prefix);
+    }
+
+    private void decode(byte[] data) {
+        if (!OutputFrame.isFrame(data)) {
+            // 旧格式每个节点一行，EOF节点表示结束
+            String line = ToolUtil.toStr(data);
+            if (line.equals("EOF"))
+                eof = true;
+            else
+                lines.add(line);
+        } else if ((OutputFrame.getFlags(data) & OutputFrame.CHUNK) != 0) {
+            lines.addAll(OutputFrame.getLines(data));
+        } else if ((OutputFrame.getFlags(data) & OutputFrame.SPILL) != 0) {
+            spill = new SpillReader(SpillDescriptor.parse(OutputFrame
+                    .getPayload(data)));
+            String line = spill.readLine();
+            if (line != null)
+                lines.add(line);
+        } else if ((OutputFrame.getFlags(data) & OutputFrame.END) != 0) {
+            exitValue = OutputFrame.getExitValue(data);
+            eof = true;
+        }
+    }
+
+    /**
+     * 等待并取出下一个节点，删除zk上的节点，推进窗口
+     */
+    private synchronized byte[] take() {
+        for (;;) {
+            if (closed)
+                throw new IllegalStateException("stream of command "
+                        + serialID + " on " + ip + " closed");
+            if (error != null)
+                throw new IllegalStateException("read output of command "
+                        + serialID + " on " + ip + " failed", error);
+            byte[] data = arrived.remove(next);
+            if (data != null) {
+                OutputCleaner.delete(zkw, Collections
+                        .singletonList(outputRetPath(next)));
+                next++;
+                if (next - acked >= Math.max(1, window / 2))
+                    ack();
+                fetch();
+                return data;
+            }
+            long left = 0;
+            if (timeout > 0) {
+                left = lastActivity + timeout - System.currentTimeMillis();
+                if (left <= 0)
+                    throw new IllegalStateException(new TimeoutException(
+                            "no output from " + ip + " for command "
+                                    + serialID + " in " + timeout + "ms"));
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // 列出子节点并重新设置watch
+    private void list() {
+        zkw.getZooKeeper().getChildren(outputPath, true,
+                new ChildrenCallback() {
+                    @Override
+                    public void processResult(int rc, String path,
+                            Object ctx, List<String> children) {
+                        if (rc == Code.OK.intValue())
+                            listed(children);
+                        else
+                            fail(KeeperException.create(Code.get(rc), path));
+                    }
+                }, null);
+    }
+
+    private synchronized void listed(List<String> children) {
+        TreeSet<Integer> s = new TreeSet<Integer>();
+        for (String child : children) {
+            if (!child.startsWith(prefix))
+                continue;
+            // dir布局下父节点里还有ack节点
+            try {
+                s.add(Integer.parseInt(child.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+            }
+        }
+        listed = s;
+        fetch();
+    }
+
+    /**
+     * 对窗口内列出过、还没有读取的节点发出getData
+     */
+    private synchronized void fetch() {
+        if (closed)
+            return;
+        // agent按序号写出节点，next不在而更大的序号在，说明agent取消命令时删除了没有读取的节点，
+        // 从现存的最小序号继续
+        if (!arrived.containsKey(next) && !requested.contains(next)
+                && !listed.contains(next)) {
+            TreeSet<Integer> rest = new TreeSet<Integer>(listed);
+            rest.addAll(arrived.keySet());
+            rest.addAll(requested);
+            Integer k = rest.ceiling(next);
+            if (k != null) {
+                LOG.info("output " + next + " to " + (k - 1) + " of command "
+                        + serialID + " on " + ip + " removed by agent");
+                next = k;
+                acked = k;
+            }
+        }
+        for (Integer k : listed.subSet(next, next + window)) {
+            if (arrived.containsKey(k) || !requested.add(k))
+                continue;
+            final int key = k;
+            zkw.getZooKeeper().getData(outputRetPath(key), false,
+                    new DataCallback() {
+                        @Override
+                        public void processResult(int rc, String path,
+                                Object ctx, byte[] data, Stat stat) {
+                            arrived(key, rc, path, data);
+                        }
+                    }, null);
+        }
+    }
+
+    private synchronized void arrived(int key, int rc, String path,
+            byte[] data) {
+        requested.remove(key);
+        if (rc == Code.OK.intValue()) {
+            if (key >= next) {
+                arrived.put(key, data);
+                lastActivity = System.currentTimeMillis();
+                notifyAll();
+            }
+        } else if (rc == Code.NONODE.intValue()) {
+            // 被agent删除，重新列出后跳过
+            listed.remove(key);
+            list();
+        } else {
+            fail(KeeperException.create(Code.get(rc), path));
+        }
+    }
+
+    private synchronized void fail(Throwable e) {
+        if (error == null)
+            error = e;
+        notifyAll();
+    }
+
+    // 把已经消费的节点数写到ack节点，第一次确认时建立
+    private void ack() {
+        acked = next;
+        byte[] data = ToolUtil.toByte(String.valueOf(acked));
+        if (!ackCreated) {
+            ackCreated = true;
+            zkw.getZooKeeper().create(ackPath, data, Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT, new StringCallback() {
+                        @Override
+                        public void processResult(int rc, String path,
+                                Object ctx, String name) {
+                            if (rc != Code.OK.intValue()
+                                    && rc != Code.NODEEXISTS.intValue())
+                                LOG.warn("can not create " + path + ", "
+                                        + Code.get(rc));
+                        }
+                    }, null);
+            return;
+        }
+        zkw.getZooKeeper().setData(ackPath, data, -1, new StatCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx,
+                    Stat stat) {
+                // agent已经不再等待确认时会删除ack节点
+            }
+        }, null);
+    }
+
+    private String outputRetPath(int key) {
+        return outputPath + "/" + prefix + key;
+    }
+
+    /**
+     * output节点的子节点变化通知，重新连接后watch可能丢失，也重新列出一次
+     */
+    private class OutputWatch extends ZooKeeperListener {
+        OutputWatch(ZooKeeperWatcher zkw) {
+            super(zkw);
+        }
+
+        @Override
+        public void nodeChildrenChanged(String path) {
+            if (path.equals(outputPath))
+                list();
+        }
+
+        @Override
+        public void connected(long sessionId) {
+            list();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.sohu.cloudno.api;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+
+import org.apache.log4j.Logger;
+
+import com.sohu.cloudno.comm.OutputFrame;
+
+/**
+ * 客户端一侧的直连通道，等待agent连接并读取它推送的输出帧
+ *
+ * <p>
+ * 每个命令监听一个临时端口，地址和随机token通过命令属性callback交给agent。
+ * agent连上后先发送token，token不对的连接被丢弃。
+ */
+class DirectChannel {
+    private static final Logger LOG = Logger.getLogger(DirectChannel.class);
+    // 单帧长度上限，防止错误的长度导致分配过大的内存
+    private static final int MAX_FRAME = 16 * 1024 * 1024;
+    private static final int READ_TIMEOUT = 600000;
+    private final ServerSocket server;
+    private final String host;
+    private final String token;
+    private Socket socket = null;
+    private DataInputStream in = null;
+
+    DirectChannel(String host) throws IOException {
+        this.host = host;
+        SecureRandom random = new SecureRandom();
+        this.token = Long.toHexString(random.nextLong())
+                + Long.toHexString(random.nextLong());
+        this.server = new ServerSocket(0);
+    }
+
+    /**
+     * @return String 写到命令属性callback里的地址
+     */
+    String getEndpoint() {
+        return host + ":" + server.getLocalPort() + ":" + token;
+    }
+
+    boolean isConnected() {
+        return in != null;
+    }
+
+    /**
+     * 等待agent连接
+     *
+     * @param timeout
+     *            单位milliseconds
+     * @return boolean true表示agent已经连上
+     */
+    boolean accept(int timeout) {
+        try {
+            server.setSoTimeout(timeout);
+            Socket s = server.accept();
+            s.setSoTimeout(READ_TIMEOUT);
+            InputStream is = s.getInputStream();
+            StringBuilder sb = new StringBuilder();
+            for (int c; (c = is.read()) >= 0 && c != '\n' && sb.length() < 64;) {
+                sb.append((char) c);
+            }
+            if (!sb.toString().equals(token)) {
+                LOG.warn("bad token from " + s.getRemoteSocketAddress());
+                s.close();
+                return false;
+            }
+            socket = s;
+            in = new DataInputStream(new BufferedInputStream(is));
+            server.close();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            LOG.warn("accept direct channel error", e);
+            return false;
+        }
+    }
+
+    /**
+     * 读取下一帧
+     *
+     * @return byte[] null表示连接已经断开
+     */
+    byte[] readFrame() {
+        try {
+            int len = in.readInt();
+            if (len < 2 || len > MAX_FRAME)
+                throw new IOException("bad frame length " + len);
+            byte[] frame = new byte[len];
+            in.readFully(frame);
+            if (!OutputFrame.isFrame(frame))
+                throw new IOException("bad frame");
+            return frame;
+        } catch (IOException e) {
+            LOG.warn("direct channel broken, fallback to zk", e);
+            close();
+            return null;
+        }
+    }
+
+    void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+        }
+        try {
+            if (socket != null)
+                socket.close();
+        } catch (IOException e) {
+        }
+        in = null;
+    }
+}
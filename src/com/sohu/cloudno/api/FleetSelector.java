@@ -0,0 +1,153 @@
+package com.sohu.cloudno.api;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import com.sohu.cloudno.comm.Constant;
+import com.sohu.cloudno.comm.ToolUtil;
+import com.sohu.cloudno.comm.ZKUtil;
+import com.sohu.cloudno.comm.ZooKeeperWatcher;
+
+/**
+ * 把实例树上的一个分支解析成运行这些实例的agent的ip
+ *
+ * <p>
+ * 实例节点是agent建立的临时节点，ephemeralOwner就是agent的session id；
+ * 每个agent把自己的session id写在/v0002/remotecontrol/ip节点上。
+ * 两边都按层异步批量读取，每层只等待一次往返。
+ */
+class FleetSelector {
+    private final ZooKeeperWatcher zkw;
+
+    FleetSelector(ZooKeeperWatcher zkw) {
+        this.zkw = zkw;
+    }
+
+    /**
+     * @param selector
+     *            /v0002/instances下的相对路径，例如"MYSQL"或者"MYSQL/grp@12"
+     * @return Set 有实例在这个分支下的agent的ip
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    Set<String> select(String selector) throws KeeperException,
+            InterruptedException {
+        Set<Long> owners = owners(Constant.ROOT + Constant.INSTANCE + "/"
+                + selector);
+        Map<Long, String> sessions = sessions();
+        Set<String> ips = new TreeSet<String>();
+        for (Long owner : owners) {
+            String ip = sessions.get(owner);
+            if (ip != null)
+                ips.add(ip);
+        }
+        return ips;
+    }
+
+    // 按层遍历分支，临时节点的ephemeralOwner
+    private Set<Long> owners(String root) throws KeeperException,
+            InterruptedException {
+        Set<Long> owners = new TreeSet<Long>();
+        List<String> level = new ArrayList<String>();
+        level.add(root);
+        while (!level.isEmpty()) {
+            final Map<String, Stat> stats = new HashMap<String, Stat>();
+            final Map<String, List<String>> children = new HashMap<String, List<String>>();
+            final CountDownLatch latch = new CountDownLatch(level.size());
+            final int[] error = { Code.OK.intValue() };
+            ZooKeeper zk = zkw.getZooKeeper();
+            for (String path : level) {
+                zk.getChildren(path, false, new Children2Callback() {
+                    @Override
+                    public void processResult(int rc, String path,
+                            Object ctx, List<String> c, Stat stat) {
+                        synchronized (stats) {
+                            if (rc == Code.OK.intValue()) {
+                                stats.put(path, stat);
+                                children.put(path, c);
+                            } else if (rc != Code.NONODE.intValue()) {
+                                error[0] = rc;
+                            }
+                        }
+                        latch.countDown();
+                    }
+                }, null);
+            }
+            latch.await();
+            check(error[0], root);
+            List<String> next = new ArrayList<String>();
+            for (Map.Entry<String, Stat> e : stats.entrySet()) {
+                if (e.getValue().getEphemeralOwner() != 0) {
+                    owners.add(e.getValue().getEphemeralOwner());
+                    continue;
+                }
+                for (String c : children.get(e.getKey())) {
+                    next.add(ZKUtil.joinZNode(e.getKey(), c));
+                }
+            }
+            level = next;
+        }
+        return owners;
+    }
+
+    // agent的session id到ip
+    private Map<Long, String> sessions() throws KeeperException,
+            InterruptedException {
+        String base = Constant.ROOT + Constant.REMOTECONTROL;
+        List<String> ips = ZKUtil.lsChildrenNoWatch(zkw, base);
+        final Map<Long, String> sessions = new HashMap<Long, String>();
+        if (ips == null)
+            return sessions;
+        final CountDownLatch latch = new CountDownLatch(ips.size());
+        final int[] error = { Code.OK.intValue() };
+        for (String ip : ips) {
+            zkw.getZooKeeper().getData(ZKUtil.joinZNode(base, ip), false,
+                    new DataCallback() {
+                        @Override
+                        public void processResult(int rc, String path,
+                                Object ctx, byte[] data, Stat stat) {
+                            synchronized (sessions) {
+                                if (rc == Code.OK.intValue()) {
+                                    String s = data == null ? "" : ToolUtil
+                                            .toStr(data);
+                                    if (s.startsWith(Constant.SESSION_PREFIX)) {
+                                        // session id可能是负数，十六进制有16位
+                                        try {
+                                            sessions.put(new BigInteger(s
+                                                    .substring(Constant.SESSION_PREFIX
+                                                            .length()), 16)
+                                                    .longValue(), (String) ctx);
+                                        } catch (NumberFormatException e) {
+                                        }
+                                    }
+                                } else if (rc != Code.NONODE.intValue()) {
+                                    error[0] = rc;
+                                }
+                            }
+                            latch.countDown();
+                        }
+                    }, ip);
+        }
+        latch.await();
+        check(error[0], base);
+        return sessions;
+    }
+
+    private static void check(int rc, String path) throws KeeperException {
+        if (rc != Code.OK.intValue())
+            throw KeeperException.create(Code.get(rc), path);
+    }
+}
@@ -0,0 +1,88 @@
+package com.sohu.cloudno.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 广播命令在一台主机上的结果
+ */
+public class HostResult {
+    /**
+     * 结果状态；agent没有返回退出码时（客户端没有打开command.exit，或者agent是旧版本），
+     * 非0退出的命令也是OK
+     */
+    public enum Status {
+        // 命令执行完，输出完整
+        OK,
+        // 命令执行完，退出码不为0
+        FAILED,
+        // agent忙，没有执行
+        REJECTED,
+        // 在agent上被取消
+        CANCELLED,
+        // 超过timeout没有输出
+        TIMEOUT,
+        // 提交或者读取失败
+        ERROR
+    }
+
+    private final String ip;
+    private final long serialID;
+    private final Status status;
+    private final List<String> lines;
+    private final Integer exitValue;
+    private final Throwable error;
+
+    HostResult(String ip, long serialID, Status status, List<String> lines,
+            Throwable error) {
+        this(ip, serialID, status, lines, null, error);
+    }
+
+    HostResult(String ip, long serialID, Status status, List<String> lines,
+            Integer exitValue, Throwable error) {
+        this.ip = ip;
+        this.serialID = serialID;
+        this.status = status;
+        this.lines = lines == null ? Collections.<String> emptyList() : lines;
+        this.exitValue = exitValue;
+        this.error = error;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public long getSerialID() {
+        return serialID;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * @return Integer 命令的退出码，null表示agent没有返回
+     */
+    public Integer getExitValue() {
+        return exitValue;
+    }
+
+    /**
+     * @return Throwable 状态为ERROR或者TIMEOUT时的原因
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return ip + "#" + serialID + " " + status
+                + (exitValue == null ? "" : "(" + exitValue + ")") + ", "
+                + lines.size()
+                + " lines" + (error == null ? "" : ", " + error);
+    }
+}
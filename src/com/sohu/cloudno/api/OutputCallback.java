@@ -0,0 +1,14 @@
+package com.sohu.cloudno.api;
+
+/**
+ * 异步执行命令时逐行接收输出，在回调线程中按输出顺序调用，不能长时间阻塞
+ */
+public interface OutputCallback {
+    /**
+     * @param serialID
+     *            命令的序列号
+     * @param line
+     *            一行输出
+     */
+    void onLine(long serialID, String line);
+}
@@ -0,0 +1,188 @@
+package com.sohu.cloudno.api;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.KeeperException.Code;
+
+import com.sohu.cloudno.comm.ZKUtil;
+import com.sohu.cloudno.comm.ZooKeeperWatcher;
+
+/**
+ * 在后台删除已经读取的输出节点，读取方不等待删除
+ *
+ * <p>
+ * 删除请求用异步接口立即发出，连续的请求在zk连接上流水线执行。
+ * 失败的请求按指数退避重试，最多MAX_ATTEMPTS次；节点已经不存在视为成功。
+ * 删除父节点时如果还有子节点，先删除子节点再重试父节点；dir布局的父节点被删除后，
+ * agent不再写出这个命令的输出。
+ */
+class OutputCleaner {
+    private static final Logger LOG = Logger.getLogger(OutputCleaner.class);
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 30000;
+    // 只用来执行重试，正常的删除不经过这个线程
+    private static final ScheduledExecutorService RETRY = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "OutputCleaner");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private OutputCleaner() {
+    }
+
+    /**
+     * 删除已经读取的输出节点
+     *
+     * @param zkw
+     * @param nodes
+     */
+    static void delete(ZooKeeperWatcher zkw, Collection<String> nodes) {
+        for (String node : nodes) {
+            new Delete(zkw, node, false).run();
+        }
+    }
+
+    /**
+     * 删除dir布局下命令的父节点和剩余的子节点
+     *
+     * @param zkw
+     * @param parent
+     */
+    static void deleteTree(ZooKeeperWatcher zkw, String parent) {
+        new Delete(zkw, parent, true).run();
+    }
+
+    /**
+     * 删除平铺布局下parent中以prefix开头的节点，用于没有读完就结束的命令。
+     * agent可能还在写出，按退避间隔重复列出，直到找到过的节点不再出现或者达到重试次数；
+     * 这之后才写出的节点由agent在命令结束后回收
+     *
+     * @param zkw
+     * @param parent
+     * @param prefix
+     */
+    static void deleteMatching(ZooKeeperWatcher zkw, String parent,
+            String prefix) {
+        new Sweep(zkw, parent, prefix, null, true).run();
+    }
+
+    private static long backoff(int attempts) {
+        return Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(attempts, 16));
+    }
+
+    /**
+     * 一次删除，失败后重新调度自己
+     */
+    private static class Delete implements Runnable, VoidCallback {
+        private final ZooKeeperWatcher zkw;
+        private final String node;
+        // 有子节点时先删除子节点
+        private final boolean tree;
+        private int attempts = 0;
+
+        Delete(ZooKeeperWatcher zkw, String node, boolean tree) {
+            this.zkw = zkw;
+            this.node = node;
+            this.tree = tree;
+        }
+
+        @Override
+        public void run() {
+            zkw.getZooKeeper().delete(node, -1, this, null);
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx) {
+            if (rc == Code.OK.intValue() || rc == Code.NONODE.intValue())
+                return;
+            if (++attempts >= MAX_ATTEMPTS) {
+                LOG.warn("give up deleting " + node + " after " + attempts
+                        + " attempts, " + Code.get(rc));
+                return;
+            }
+            LOG.debug("delete " + node + " failed, " + Code.get(rc)
+                    + ", retry " + attempts);
+            Runnable retry = this;
+            if (tree && rc == Code.NOTEMPTY.intValue()) {
+                // 列出、删除子节点、删除父节点依次流水线发出，agent还在写出时也只有一次往返的间隙
+                retry = new Sweep(zkw, node, "", this, false);
+                if (attempts == 1) {
+                    retry.run();
+                    return;
+                }
+            }
+            RETRY.schedule(retry, backoff(attempts), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 列出parent的子节点，删除以prefix开头的
+     */
+    private static class Sweep implements Runnable, ChildrenCallback {
+        private final ZooKeeperWatcher zkw;
+        private final String parent;
+        private final String prefix;
+        // 子节点的删除发出之后执行，可以为null
+        private final Runnable then;
+        // agent可能还在写出，找到节点后退避再列出一次，直到不再出现新的节点
+        private final boolean repeat;
+        private int attempts = 0;
+        private boolean found = false;
+
+        Sweep(ZooKeeperWatcher zkw, String parent, String prefix,
+                Runnable then, boolean repeat) {
+            this.zkw = zkw;
+            this.parent = parent;
+            this.prefix = prefix;
+            this.then = then;
+            this.repeat = repeat;
+        }
+
+        @Override
+        public void run() {
+            zkw.getZooKeeper().getChildren(parent, false, this, null);
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx,
+                List<String> children) {
+            if (rc == Code.NONODE.intValue())
+                return;
+            if (rc == Code.OK.intValue()) {
+                int n = 0;
+                for (String child : children) {
+                    if (child.startsWith(prefix)) {
+                        new Delete(zkw, ZKUtil.joinZNode(parent, child), false)
+                                .run();
+                        n++;
+                    }
+                }
+                if (then != null)
+                    then.run();
+                if (!repeat || (found && n == 0))
+                    return;
+                found = found || n > 0;
+            }
+            if (++attempts >= MAX_ATTEMPTS) {
+                if (rc != Code.OK.intValue())
+                    LOG.warn("give up listing " + parent + " after "
+                            + attempts + " attempts, " + Code.get(rc));
+                return;
+            }
+            RETRY.schedule(this, backoff(attempts), TimeUnit.MILLISECONDS);
+        }
+    }
+}
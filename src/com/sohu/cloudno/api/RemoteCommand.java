@@ -1,14 +1,16 @@
 package com.sohu.cloudno.api;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.server.quorum.QuorumPeerConfig.ConfigException;
 
+import com.sohu.cloudno.comm.CommandEnvelope;
 import com.sohu.cloudno.comm.Conf;
 import com.sohu.cloudno.comm.Conf.ConfException;
-import com.sohu.cloudno.comm.Constant;
 import com.sohu.cloudno.comm.ToolUtil;
 import com.sohu.cloudno.comm.ZKUtil;
 import com.sohu.cloudno.comm.ZooKeeperConnectionException;
@@ -18,6 +20,8 @@ public class RemoteCommand {
     private static final Logger LOG = Logger.getLogger(RemoteCommand.class);
     private ZooKeeperWatcher zkw;
     private Conf conf;
+    // 异步执行的分发器，第一次异步执行时建立
+    private AsyncCommandDispatcher dispatcher = null;
 
     public RemoteCommand() throws ConfException, ZooKeeperConnectionException,IOException, InterruptedException {
         // 设置名字，便于看调试的输出
@@ -48,6 +52,141 @@ public class RemoteCommand {
      */
     public CommandResult run(String ip, String cmd, int timeout)
             throws ConfigException, KeeperException {
+        if (cmd == null){
+            throw new ConfigException("cmd is null");
+        }
+        CommandEnvelope env = newEnvelope(cmd, timeout);
+        if ("true".equals(conf.get("command.spill")))
+            env.set(CommandEnvelope.SPILL, "1");
+        if ("true".equals(conf.get("command.direct"))) {
+            try {
+                return runDirect(ip, env);
+            } catch (IOException e) {
+                LOG.warn("can not open direct channel, use zk only", e);
+            }
+        }
+        return run(ip, env);
+    }
+
+    /**
+     * 异步远程执行命令，立即返回，输出全部收集到CommandOutcome中
+     * 
+     * @param ip
+     * @param cmd
+     * @param timeout
+     * @return CommandFuture
+     * @throws ConfigException
+     */
+    public CommandFuture runAsync(String ip, String cmd, int timeout)
+            throws ConfigException {
+        if (cmd == null) {
+            throw new ConfigException("cmd is null");
+        }
+        return runAsync(ip, newEnvelope(cmd, timeout), null);
+    }
+
+    /**
+     * 异步远程执行命令，立即返回；输出逐行交给callback，不在CommandOutcome中保存。
+     * 一个RemoteCommand上可以同时有大量命令在执行，不占用额外的线程
+     * 
+     * @param ip
+     * @param cmd
+     * @param callback
+     *            null表示输出收集到CommandOutcome中
+     * @return CommandFuture
+     * @throws ConfigException
+     */
+    public CommandFuture runAsync(String ip, CommandEnvelope cmd,
+            OutputCallback callback) throws ConfigException {
+        if (!ToolUtil.checkIP(ip)) {
+            throw new ConfigException("Format of ip \"" + ip + "\" is wrong");
+        }
+        if (cmd == null || cmd.getCmd() == null) {
+            throw new ConfigException("cmd is null");
+        }
+        synchronized (this) {
+            if (dispatcher == null)
+                dispatcher = new AsyncCommandDispatcher(zkw);
+        }
+        return dispatcher.submit(ip, negotiate(cmd), callback);
+    }
+
+    // 声明能够解码的输出压缩方式，目标agent都升级之后再在配置中打开
+    private CommandEnvelope newEnvelope(String cmd, int timeout) {
+        CommandEnvelope env = new CommandEnvelope(cmd, timeout);
+        String codec = conf.get("command.codec");
+        if (codec != null && !codec.equals(""))
+            env.set(CommandEnvelope.CODEC, codec);
+        return env;
+    }
+
+    // 声明能够解析分块输出和带退出码的END帧，使用每个命令一个输出父节点，目标agent都升级之后再在配置中打开
+    private CommandEnvelope negotiate(CommandEnvelope env) {
+        if ("true".equals(conf.get("command.chunk"))
+                && env.get(CommandEnvelope.CHUNK) == null)
+            env.set(CommandEnvelope.CHUNK, "1");
+        if ("true".equals(conf.get("command.exit"))
+                && env.get(CommandEnvelope.EXIT) == null)
+            env.set(CommandEnvelope.EXIT, "1");
+        if (CommandEnvelope.DIR.equals(conf.get("command.layout"))
+                && env.get(CommandEnvelope.LAYOUT) == null)
+            env.set(CommandEnvelope.LAYOUT, CommandEnvelope.DIR);
+        return env;
+    }
+
+    // dir布局下客户端也建立命令的父节点，读取时可以直接在它上面设置watch
+    private long insert(String ip, CommandEnvelope cmd) throws KeeperException {
+        String znode = ZKUtil.creatSeqNode(zkw, ZKUtil.getInputPath(ip)
+                + "/cmd@", ToolUtil.toByte(negotiate(cmd).encode()));
+        long serialID = Long.parseLong(znode.substring(znode.lastIndexOf("@") + 1));
+        if (cmd.isOutputDir())
+            ZKUtil.creatAndFailSilent(zkw, ZKUtil.getOutputRetPath(ip,
+                    serialID));
+        return serialID;
+    }
+
+    /**
+     * 远程执行命令，可以附带优先级等属性
+     * 
+     * @param ip
+     * @param cmd
+     * @return CommandResult
+     * @throws ConfigException
+     * @throws KeeperException
+     */
+    public CommandResult run(String ip, CommandEnvelope cmd)
+            throws ConfigException, KeeperException {
+        return submit(ip, cmd, null);
+    }
+
+    /**
+     * 远程执行命令，agent直接连接本机推送输出和退出码，连不上时仍然通过zk返回
+     * 
+     * @param ip
+     * @param cmd
+     * @return CommandResult
+     * @throws ConfigException
+     * @throws KeeperException
+     * @throws IOException
+     *             本机不能监听端口
+     */
+    public CommandResult runDirect(String ip, CommandEnvelope cmd)
+            throws ConfigException, KeeperException, IOException {
+        DirectChannel direct = new DirectChannel(ToolUtil.getPhysicalIp());
+        cmd.set(CommandEnvelope.CALLBACK, direct.getEndpoint());
+        try {
+            return submit(ip, cmd, direct);
+        } catch (KeeperException e) {
+            direct.close();
+            throw e;
+        } catch (ConfigException e) {
+            direct.close();
+            throw e;
+        }
+    }
+
+    private CommandResult submit(String ip, CommandEnvelope cmd,
+            DirectChannel direct) throws ConfigException, KeeperException {
         //modify by kangzhanwang 2013-11-13 start
         //增加if的大括号
         if (!ToolUtil.checkIP(ip)){
@@ -55,25 +194,114 @@ public class RemoteCommand {
                                       "\" is wrong. ip length is " + ip.length() + 
                                       ", maybe include blank space?");
         }            
-        if (cmd == null){
+        if (cmd == null || cmd.getCmd() == null){
             throw new ConfigException("cmd is null");
         }    
         //modify by kangzhanwang 2013-11-13 end
         
-        // 插入队列
-        String znode = ZKUtil.creatSeqNode(zkw, 
-                                           ZKUtil.getInputPath(ip) + "/cmd@",
-                                           ToolUtil.toByte(cmd + Constant.FIELD_SPLIT + timeout));
-        // 获取命令的序列号
-        long serialID = Long.parseLong(znode.substring(znode.lastIndexOf("@") + 1));
-        LOG.info("Execute command: " + cmd + Constant.FIELD_SPLIT + timeout);
+        // 插入队列，得到命令的序列号
+        long serialID = insert(ip, cmd);
+        LOG.info("Execute command: " + cmd);
         
         // 创建结果集对象
-        CommandResult ret = new CommandResult(zkw, ip, serialID, timeout);
+        CommandResult ret = new CommandResult(zkw, ip, serialID, cmd.getTimeout(), direct,
+                                              cmd.isOutputDir());
         return ret;
     }
 
+    /**
+     * 远程执行命令，按行流式读取输出，客户端读得慢时agent暂停写出
+     * 
+     * @param ip
+     * @param cmd
+     * @param window
+     *            预取和agent最多多写出的输出节点数
+     * @return CommandStream
+     * @throws ConfigException
+     * @throws KeeperException
+     */
+    public CommandStream stream(String ip, CommandEnvelope cmd, int window)
+            throws ConfigException, KeeperException {
+        if (!ToolUtil.checkIP(ip)) {
+            throw new ConfigException("Format of ip \"" + ip + "\" is wrong");
+        }
+        if (cmd == null || cmd.getCmd() == null) {
+            throw new ConfigException("cmd is null");
+        }
+        if (window <= 0) {
+            throw new ConfigException("window must be positive");
+        }
+        cmd.setWindow(window);
+        long serialID = insert(ip, cmd);
+        LOG.info("Execute command with window " + window + ": " + cmd);
+        return new CommandStream(zkw, ip, serialID, cmd.getTimeout(), window,
+                cmd.isOutputDir());
+    }
+
+    /**
+     * 取消已经提交的命令：排队中的不再执行，正在执行的kill整个进程树，
+     * 结果中没有读取的输出被删除，最后返回一行"JA_CANCELLED"
+     * 
+     * @param ip
+     * @param serialID
+     *            命令的序列号，见{@link CommandResult#getSerialID()}
+     * @throws ConfigException
+     * @throws KeeperException
+     */
+    public void cancel(String ip, long serialID) throws ConfigException,
+            KeeperException {
+        if (!ToolUtil.checkIP(ip)) {
+            throw new ConfigException("Format of ip \"" + ip + "\" is wrong");
+        }
+        ZKUtil.creatAndFailSilent(zkw, ZKUtil.getCancelPath(ip, serialID));
+        LOG.info("Cancel command " + serialID + " on " + ip);
+    }
+
+    /**
+     * 在多台主机上执行同一个命令，立即返回，结果汇总在BroadcastReport中
+     * 
+     * @param ips
+     *            重复的ip只执行一次
+     * @param cmd
+     * @param concurrency
+     *            同时在途的命令数
+     * @param listener
+     *            每台主机完成时调用，可以为null
+     * @return BroadcastReport
+     * @throws ConfigException
+     */
+    public BroadcastReport broadcast(Collection<String> ips,
+            CommandEnvelope cmd, int concurrency, BroadcastListener listener)
+            throws ConfigException {
+        if (cmd == null || cmd.getCmd() == null) {
+            throw new ConfigException("cmd is null");
+        }
+        BroadcastReport report = new BroadcastReport(this, ips, cmd, listener);
+        LOG.info("Broadcast command to " + report.getTotal() + " hosts: "
+                + cmd);
+        report.start(concurrency);
+        return report;
+    }
+
+    /**
+     * 找出实例树上一个分支下的实例所在的agent
+     * 
+     * @param selector
+     *            /v0002/instances下的相对路径，例如"MYSQL"或者"MYSQL/grp@12"
+     * @return Set agent的ip
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public Set<String> resolveGroup(String selector) throws KeeperException,
+            InterruptedException {
+        return new FleetSelector(zkw).select(selector);
+    }
+
     public void close() {
+        synchronized (this) {
+            if (dispatcher != null)
+                dispatcher.shutdown();
+        }
         if (zkw != null) {
             zkw.close();
         }
@@ -0,0 +1,162 @@
+package com.sohu.cloudno.api;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.sohu.cloudno.comm.SpillDescriptor;
+import com.sohu.cloudno.comm.ToolUtil;
+
+/**
+ * 按行读取溢出到agent本地的命令输出，命令还在执行时边写边读，读完后校验长度和crc32
+ *
+ * <p>
+ * 连接中断时用已经收到的字节数作为偏移重新连接，最多重试ATTEMPTS次。
+ * agent报告输出不完整(命令被取消或者写文件出错)时结束读取，原因由之后的zk节点返回。
+ * 连接或者读取失败、校验不通过时抛出IllegalStateException，
+ * 因为CommandResult.readLine()的接口只声明了KeeperException。
+ */
+class SpillReader {
+    private static final Logger LOG = Logger.getLogger(SpillReader.class);
+    private static final int CONNECT_TIMEOUT = 10000;
+    // agent空闲时每10秒发送一次心跳
+    private static final int READ_TIMEOUT = 60000;
+    private static final int ATTEMPTS = 3;
+    // 块长度的特殊值，和SpillServer一致
+    private static final int HEARTBEAT = 0;
+    private static final int END = -1;
+    private static final int FAILED = -2;
+    private final SpillDescriptor desc;
+    private Socket socket = null;
+    private DataInputStream in = null;
+    private final CRC32 crc = new CRC32();
+    // 已经读到的字节数
+    private long size = 0;
+    // 当前块还没有读取的字节数
+    private int remaining = 0;
+    private int failures = 0;
+    private boolean end = false;
+    private final BufferedReader br;
+
+    SpillReader(SpillDescriptor desc) {
+        this.desc = desc;
+        try {
+            connect();
+        } catch (IOException e) {
+            throw new IllegalStateException("connect to spill " + desc
+                    + " failed", e);
+        }
+        br = new BufferedReader(new InputStreamReader(new BlockInputStream(),
+                Charset.forName("UTF-8")));
+        LOG.info("read spilled output from " + desc);
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(desc.getHost(), desc.getPort()),
+                CONNECT_TIMEOUT);
+        socket.setSoTimeout(READ_TIMEOUT);
+        OutputStream os = socket.getOutputStream();
+        os.write(ToolUtil.toByte(desc.getToken() + " " + size + "\n"));
+        os.flush();
+        in = new DataInputStream(socket.getInputStream());
+        remaining = 0;
+    }
+
+    /**
+     * @return String null表示读完
+     */
+    String readLine() {
+        try {
+            String line = br.readLine();
+            if (line == null)
+                close();
+            return line;
+        } catch (IOException e) {
+            close();
+            throw new IllegalStateException("read spill " + desc + " failed, "
+                    + size + " bytes received", e);
+        }
+    }
+
+    void close() {
+        try {
+            if (socket != null)
+                socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * 去掉块长度，连接中断时从断点重新连接
+     */
+    private class BlockInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            for (;;) {
+                if (end)
+                    return -1;
+                try {
+                    if (in == null)
+                        connect();
+                    if (remaining == 0) {
+                        nextBlock();
+                        continue;
+                    }
+                    int n = in.read(b, off, Math.min(len, remaining));
+                    if (n < 0)
+                        throw new EOFException("spill connection closed");
+                    crc.update(b, off, n);
+                    size += n;
+                    remaining -= n;
+                    return n;
+                } catch (IOException e) {
+                    close();
+                    in = null;
+                    if (++failures >= ATTEMPTS)
+                        throw e;
+                    LOG.warn("read spill " + desc + " error, resume from "
+                            + size, e);
+                }
+            }
+        }
+
+        private void nextBlock() throws IOException {
+            int n = in.readInt();
+            if (n > 0) {
+                remaining = n;
+            } else if (n == END) {
+                long total = in.readLong();
+                long crc32 = in.readLong();
+                end = true;
+                if (total != size || crc32 != crc.getValue())
+                    throw new IllegalStateException("spill " + desc
+                            + " mismatch, " + size + " bytes received, "
+                            + total + " bytes sent");
+            } else if (n == FAILED) {
+                // 命令被取消或者agent写文件出错，原因随后在zk上返回
+                end = true;
+                LOG.warn("spill " + desc + " incomplete on agent, " + size
+                        + " bytes received");
+            } else if (n != HEARTBEAT) {
+                throw new IOException("bad spill block " + n);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.sohu.cloudno.comm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * 远程命令在input节点上的数据格式：命令&超时时间[&key=value]...
+ *
+ * <p>
+ * 命令本身可能包含"&"，所以从后往前解析：末尾形如key=value的段是附加属性，
+ * 遇到的第一个纯数字段是超时时间，其余部分是命令。不带属性的旧格式"命令&超时时间"按原样解析，
+ * 旧版本的agent也只取最后一个"&"之后的超时时间，所以只在需要时才附加属性。
+ */
+public class CommandEnvelope {
+    // 执行优先级，数值越大越先执行
+    public static final String PRIORITY = "priority";
+    // 客户端能够解析分块输出帧
+    public static final String CHUNK = "chunk";
+    // 客户端能够解码的输出压缩方式
+    public static final String CODEC = "codec";
+    // 客户端能够从zk上最后一个END帧读取退出码
+    public static final String EXIT = "exit";
+    public static final String DEFLATE = "deflate";
+    // 客户端能够从agent本地读取溢出的大块输出
+    public static final String SPILL = "spill";
+    // 客户端的直连地址host:port:token，agent连上后直接推送输出
+    public static final String CALLBACK = "callback";
+    // 幂等命令的输出可以在agent上缓存的时间，单位milliseconds
+    public static final String CACHEABLE = "cacheable";
+    // 客户端没有确认时agent最多多写出的输出节点数
+    public static final String WINDOW = "window";
+    // 输出节点的布局，dir表示每个命令一个父节点output/cmd@id，输出节点是它的子节点
+    public static final String LAYOUT = "layout";
+    public static final String DIR = "dir";
+    // 允许agent用常驻的shell worker执行短命令
+    public static final String SHELL = "shell";
+    public static final String POOL = "pool";
+
+    private final String cmd;
+    private final int timeout;
+    private final Map<String, String> attrs = new LinkedHashMap<String, String>();
+
+    public CommandEnvelope(String cmd, int timeout) {
+        this.cmd = cmd;
+        this.timeout = timeout;
+    }
+
+    /**
+     * 解析input节点上的数据
+     *
+     * @param data
+     * @return CommandEnvelope
+     * @throws NumberFormatException
+     *             找不到超时时间
+     */
+    public static CommandEnvelope parse(String data) {
+        Map<String, String> attrs = new LinkedHashMap<String, String>();
+        int end = data.length();
+        for (;;) {
+            int split = data.lastIndexOf(Constant.FIELD_SPLIT, end - 1);
+            if (split < 0)
+                throw new NumberFormatException("no timeout in \"" + data
+                        + "\"");
+            String seg = data.substring(split + 1, end);
+            int eq = seg.indexOf('=');
+            if (eq > 0) {
+                attrs.put(seg.substring(0, eq), seg.substring(eq + 1));
+                end = split;
+                continue;
+            }
+            CommandEnvelope env = new CommandEnvelope(data.substring(0, split),
+                    Integer.parseInt(seg));
+            // 按照写入的顺序保存
+            String[] keys = attrs.keySet().toArray(new String[attrs.size()]);
+            for (int i = keys.length - 1; i >= 0; i--) {
+                env.attrs.put(keys[i], attrs.get(keys[i]));
+            }
+            return env;
+        }
+    }
+
+    /**
+     * 生成input节点上的数据
+     *
+     * @return String
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder(cmd);
+        sb.append(Constant.FIELD_SPLIT).append(timeout);
+        for (Entry<String, String> attr : attrs.entrySet()) {
+            sb.append(Constant.FIELD_SPLIT).append(attr.getKey()).append('=')
+                    .append(attr.getValue());
+        }
+        return sb.toString();
+    }
+
+    public String getCmd() {
+        return cmd;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public String get(String key) {
+        return attrs.get(key);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = attrs.get(key);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 设置附加属性，值里不能包含"&"
+     *
+     * @param key
+     * @param value
+     * @return CommandEnvelope
+     */
+    public CommandEnvelope set(String key, String value) {
+        if (value.indexOf(Constant.FIELD_SPLIT) >= 0)
+            throw new IllegalArgumentException("attribute " + key
+                    + " contains \"" + Constant.FIELD_SPLIT + "\"");
+        attrs.put(key, value);
+        return this;
+    }
+
+    public int getPriority() {
+        return getInt(PRIORITY, 0);
+    }
+
+    public CommandEnvelope setPriority(int priority) {
+        return set(PRIORITY, String.valueOf(priority));
+    }
+
+    public int getCacheable() {
+        return getInt(CACHEABLE, 0);
+    }
+
+    /**
+     * 声明命令是幂等的，agent可以在ttl内用缓存的输出回答相同的命令
+     * 
+     * @param ttl
+     *            单位milliseconds
+     * @return CommandEnvelope
+     */
+    public CommandEnvelope setCacheable(int ttl) {
+        return set(CACHEABLE, String.valueOf(ttl));
+    }
+
+    public int getWindow() {
+        return getInt(WINDOW, 0);
+    }
+
+    /**
+     * 声明客户端会在output/ack@id上确认消费进度，agent写出的输出节点最多比确认的多window个
+     * 
+     * @param window
+     *            输出节点数
+     * @return CommandEnvelope
+     */
+    public CommandEnvelope setWindow(int window) {
+        return set(WINDOW, String.valueOf(window));
+    }
+
+    /**
+     * 客户端是否能够解析分块输出帧。声明了codec或者spill的客户端也能解析，它们都建立在分块输出上
+     * 
+     * @return boolean
+     */
+    public boolean isChunked() {
+        return "1".equals(get(CHUNK)) || get(CODEC) != null
+                || "1".equals(get(SPILL));
+    }
+
+    /**
+     * 客户端是否声明能够解析END帧，agent据此在zk上用带退出码的END帧代替"EOF"结束输出
+     * 
+     * @return boolean
+     */
+    public boolean isEndFrame() {
+        return "1".equals(get(EXIT));
+    }
+
+    public boolean isPooled() {
+        return POOL.equals(get(SHELL));
+    }
+
+    /**
+     * 允许agent用shell worker执行，省去fork的开销。命令的拆分和fork执行相同，
+     * 只有agent打开了shell.pool.size并且超时时间不超过shell.pool.max.timeout时才生效
+     * 
+     * @return CommandEnvelope
+     */
+    public CommandEnvelope setPooled() {
+        return set(SHELL, POOL);
+    }
+
+    public boolean isOutputDir() {
+        return DIR.equals(get(LAYOUT));
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -9,10 +9,27 @@ public class Constant {
     public static final String REMOTECONTROL = "/remotecontrol";
     public static final String INPUT = "/input";
     public static final String OUTPUT = "/output";
+    // input下取消命令的标记节点cancel@序列号
+    public static final String CANCEL = "cancel@";
+    // output下客户端确认已经消费的输出节点数ack@序列号
+    public static final String ACK = "ack@";
+    // 每个命令一个输出父节点时，父节点下的确认节点
+    public static final String DIR_ACK = "ack";
+    // remotecontrol/ip节点的数据：session=agent的session id(16进制)
+    public static final String SESSION_PREFIX = "session=";
+    // agent拒绝或者取消命令时返回的一行输出
+    public static final String JA_REJECTED = "JA_REJECTED: agent is busy";
+    public static final String JA_CANCELLED = "JA_CANCELLED: command cancelled";
     public static final String FIELD_SPLIT = "&";
 
     // JAgent的配置文件路径
     public static final String JA_CONF = "/opt/sohu/ja/conf/ja.conf";
+    // agent已发布节点的本地快照
+    public static final String JA_SNAPSHOT = "/opt/sohu/ja/conf/ja.snapshot";
+    // 重启时交接的zk session
+    public static final String JA_SESSION = "/opt/sohu/ja/conf/ja.session";
+    // 本机数据库实例关系文件，/proc探测方式使用
+    public static final String JA_RELATION = "/opt/sohu/ja/conf/db_relation.conf";
 
     // 监控数据库状态脚本位置
     public static final String SH_CHECK_DB = "/opt/sohu/ja/bin/cp_db_relation.sh";
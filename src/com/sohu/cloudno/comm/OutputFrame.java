@@ -0,0 +1,176 @@
+package com.sohu.cloudno.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * output节点上的分帧数据
+ *
+ * <p>
+ * 旧格式每个节点是一行文本，最后一个节点是"EOF"；客户端声明能够解析时，最后一个节点是带退出码的END帧。
+ * 分帧格式的节点数据以0x00开头，
+ * 第二个字节是标志位，之后是负载；负载是若干行文本，每行以'\n'结尾。
+ * 文本行不会以0x00开头，所以读取方可以同时识别两种格式。
+ *
+ * <p>
+ * 带DEFLATE标志的负载是deflate压缩后的数据，读取时透明解压。
+ * 带SPILL标志的负载是{@link SpillDescriptor}，后续的输出不在zk上。
+ */
+public class OutputFrame {
+    public static final byte MAGIC = 0;
+    // 负载是多行文本
+    public static final int CHUNK = 1;
+    // 负载经过deflate压缩
+    public static final int DEFLATE = 2;
+    // 负载是SpillDescriptor，输出要到agent本地读取
+    public static final int SPILL = 4;
+    // 直连通道或者zk上的最后一帧，负载是命令的退出码
+    public static final int END = 16;
+    private static final int HEADER = 2;
+
+    private OutputFrame() {
+    }
+
+    /**
+     * 是否是分帧格式的数据
+     *
+     * @param data
+     * @return boolean
+     */
+    public static boolean isFrame(byte[] data) {
+        return data != null && data.length >= HEADER && data[0] == MAGIC;
+    }
+
+    /**
+     * 生成一帧
+     *
+     * @param flags
+     * @param payload
+     * @param len
+     *            负载长度
+     * @return byte[]
+     */
+    public static byte[] encode(int flags, byte[] payload, int len) {
+        byte[] data = new byte[HEADER + len];
+        data[0] = MAGIC;
+        data[1] = (byte) flags;
+        System.arraycopy(payload, 0, data, HEADER, len);
+        return data;
+    }
+
+    public static int getFlags(byte[] data) {
+        return data[1] & 0xff;
+    }
+
+    /**
+     * 生成带退出码的END帧
+     *
+     * @param exitValue
+     * @return byte[]
+     */
+    public static byte[] encodeEnd(int exitValue) {
+        byte[] b = ToolUtil.toByte(String.valueOf(exitValue));
+        return encode(END, b, b.length);
+    }
+
+    /**
+     * 得到END帧中的退出码
+     *
+     * @param data
+     * @return int
+     * @throws NumberFormatException
+     *             负载不是退出码
+     */
+    public static int getExitValue(byte[] data) {
+        return Integer.parseInt(ToolUtil.toStr(getPayload(data)));
+    }
+
+    /**
+     * 生成一帧，负载足够大并且压缩后更小时使用deflate压缩
+     *
+     * @param flags
+     * @param payload
+     * @param len
+     *            负载长度
+     * @param minDeflate
+     *            负载小于这个长度时不压缩
+     * @return byte[]
+     */
+    public static byte[] encode(int flags, byte[] payload, int len,
+            int minDeflate) {
+        if (len >= minDeflate) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(payload, 0, len);
+                deflater.finish();
+                // 输出不小于输入时放弃压缩
+                byte[] out = new byte[len];
+                int n = 0;
+                while (!deflater.finished() && n < out.length) {
+                    n += deflater.deflate(out, n, out.length - n);
+                }
+                if (deflater.finished() && n < len)
+                    return encode(flags | DEFLATE, out, n);
+            } finally {
+                deflater.end();
+            }
+        }
+        return encode(flags, payload, len);
+    }
+
+    /**
+     * 得到负载，压缩过的负载被解压
+     *
+     * @param data
+     * @return byte[]
+     * @throws IllegalArgumentException
+     *             压缩数据损坏
+     */
+    public static byte[] getPayload(byte[] data) {
+        if ((getFlags(data) & DEFLATE) == 0) {
+            byte[] payload = new byte[data.length - HEADER];
+            System.arraycopy(data, HEADER, payload, 0, payload.length);
+            return payload;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, HEADER, data.length - HEADER);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    data.length * 4);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IllegalArgumentException("truncated deflate frame");
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("bad deflate frame", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 把CHUNK帧的负载拆成行
+     *
+     * @param data
+     * @return List
+     */
+    public static List<String> getLines(byte[] data) {
+        List<String> lines = new ArrayList<String>();
+        String text = ToolUtil.toStr(getPayload(data));
+        int start = 0;
+        for (int end; (end = text.indexOf('\n', start)) >= 0; start = end + 1) {
+            lines.add(text.substring(start, end));
+        }
+        if (start < text.length())
+            lines.add(text.substring(start));
+        return lines;
+    }
+}
@@ -0,0 +1,145 @@
+package com.sohu.cloudno.comm;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * {@link ToolUtil#runOSCmdRaw}的结果缓存，以命令行为key
+ *
+ * <p>
+ * 缓存项在ttl到期后失效，也可以声明脚本依赖的输入文件，任何一个文件的修改时间变化都会使缓存失效。
+ * 脚本执行失败(返回null)的结果不缓存。调用方可以要求同一个命令同时只执行一次，
+ * 其他并发调用等待并复用这次的结果。
+ */
+public class ScriptResultCache {
+    private static final Logger LOG = Logger.getLogger(ScriptResultCache.class);
+
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    // 同一个命令串行执行用的锁
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * 在指定时间运行OS的命令，优先返回缓存的结果
+     *
+     * @param cmd
+     *            OS命令，同时也是缓存的key
+     * @param timeout
+     *            命令超时时间，单位milliseconds
+     * @param ttl
+     *            缓存有效时间，单位milliseconds，0表示不缓存
+     * @param exclusive
+     *            true表示同一个命令同时只执行一次
+     * @param inputFiles
+     *            脚本依赖的输入文件，修改时间变化时缓存失效
+     * @return String null表示脚本返回结果异常或者超时
+     */
+    public String runOSCmdRaw(String cmd, long timeout, long ttl,
+            boolean exclusive, String... inputFiles) {
+        String ret = lookup(cmd, inputFiles);
+        if (ret != null)
+            return ret;
+
+        if (!exclusive)
+            return load(cmd, timeout, ttl, inputFiles);
+
+        Object lock = locks.get(cmd);
+        if (lock == null) {
+            locks.putIfAbsent(cmd, new Object());
+            lock = locks.get(cmd);
+        }
+        synchronized (lock) {
+            // 等待期间其他线程可能已经执行过
+            ret = lookup(cmd, inputFiles);
+            if (ret != null)
+                return ret;
+            return load(cmd, timeout, ttl, inputFiles);
+        }
+    }
+
+    /**
+     * 使某个命令的缓存失效
+     *
+     * @param cmd
+     */
+    public void invalidate(String cmd) {
+        cache.remove(cmd);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ScriptResultCache entries=" + cache.size() + ", hits="
+                + hits.get() + ", misses=" + misses.get();
+    }
+
+    private String lookup(String cmd, String[] inputFiles) {
+        Entry e = cache.get(cmd);
+        if (e != null && e.isValid(inputFiles)) {
+            hits.incrementAndGet();
+            return e.value;
+        }
+        return null;
+    }
+
+    private String load(String cmd, long timeout, long ttl, String[] inputFiles) {
+        misses.incrementAndGet();
+        long[] mtimes = mtimes(inputFiles);
+        String ret = ToolUtil.runOSCmdRaw(cmd, timeout);
+        if (ret != null && ttl > 0) {
+            cache.put(cmd, new Entry(ret, System.currentTimeMillis() + ttl,
+                    mtimes));
+        } else {
+            cache.remove(cmd);
+        }
+        LOG.debug("script " + cmd + " executed, " + this);
+        return ret;
+    }
+
+    private static long[] mtimes(String[] files) {
+        long[] mtimes = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            mtimes[i] = new File(files[i]).lastModified();
+        }
+        return mtimes;
+    }
+
+    /**
+     * 缓存项，记录结果、到期时间和执行前输入文件的修改时间
+     */
+    private static class Entry {
+        private final String value;
+        private final long expireAt;
+        private final long[] mtimes;
+
+        Entry(String value, long expireAt, long[] mtimes) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.mtimes = mtimes;
+        }
+
+        boolean isValid(String[] files) {
+            if (System.currentTimeMillis() >= expireAt)
+                return false;
+            if (files.length != mtimes.length)
+                return false;
+            for (int i = 0; i < files.length; i++) {
+                if (new File(files[i]).lastModified() != mtimes[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.sohu.cloudno.comm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.log4j.Logger;
+
+/**
+ * 常驻的/bin/sh worker池，用来执行短命令，避免每个命令都从JVM fork进程并启动pump和watchdog线程
+ *
+ * <p>
+ * 每个worker是一个从stdin读命令的sh进程。命令先按{@link CommandLine#parse(String)}拆成参数，
+ * 每个参数放进单引号，包装成
+ * <code>(exec '参数'...) &lt;/dev/null 2&gt;&amp;1 &amp; echo "哨兵 $!" &gt;&amp;2; wait $!; echo "哨兵 $?"</code>
+ * 写给worker：和fork执行时传给Runtime.exec的参数完全相同，命令不经过shell解释，管道、重定向、
+ * 变量等和fork执行一样不起作用；命令在子shell里exec，不会影响worker；stdout和stderr合并，和
+ * PumpStreamHandler一致；命令的pid从worker的stderr读取，超时时用来kill；
+ * stdout上出现哨兵表示命令结束，哨兵之后是退出码。哨兵每个worker随机生成，命令的输出不会碰巧和它相同。
+ *
+ * <p>
+ * 只有0 &lt; timeout &lt;= shell.pool.max.timeout的命令使用worker，其余的仍然fork。
+ * worker执行shell.pool.max.uses个命令或者存活超过shell.pool.max.age毫秒后退出，下次使用时重新启动；
+ * 命令超时或者输出没有读完的worker直接销毁。
+ */
+public class ShellPool {
+    private static final Logger LOG = Logger.getLogger(ShellPool.class);
+    // 被kill的命令的退出码，和ExecuteWatchdog销毁进程时一致
+    public static final int KILLED = 143;
+    private final int maxUses;
+    private final long maxAge;
+    private final long maxTimeout;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<Worker>();
+    private final ScheduledExecutorService timer;
+    private final SecureRandom random = new SecureRandom();
+    private volatile boolean closed = false;
+
+    public ShellPool(Conf conf) {
+        this.permits = new Semaphore(Math.max(1, conf.getInt(
+                "shell.pool.size", 4)));
+        this.maxUses = Math.max(1, conf.getInt("shell.pool.max.uses", 1000));
+        this.maxAge = conf.getInt("shell.pool.max.age", 600000);
+        this.maxTimeout = conf.getInt("shell.pool.max.timeout", 60000);
+        this.timer = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ShellPoolWatchdog");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * 命令是否可以交给worker执行
+     *
+     * @param timeout
+     *            单位milliseconds
+     * @return boolean
+     */
+    public boolean accept(long timeout) {
+        return !closed && timeout > 0 && timeout <= maxTimeout
+                && !ToolUtil.isWindows();
+    }
+
+    /**
+     * 用worker执行命令，输出逐行交给handler
+     *
+     * @param cmd
+     * @param timeout
+     *            单位milliseconds
+     * @param handler
+     * @return int 命令的退出码
+     * @throws TimeoutException
+     *             命令超时被kill
+     * @throws Exception
+     *             worker异常退出或者handler抛出的异常
+     */
+    public int run(String cmd, long timeout, LineHandler handler)
+            throws Exception {
+        return run(cmd, null, timeout, handler);
+    }
+
+    /**
+     * 用worker执行命令，子shell里先export env中的环境变量
+     *
+     * @param cmd
+     * @param env
+     *            null表示不增加环境变量
+     * @param timeout
+     *            单位milliseconds
+     * @param handler
+     * @return int 命令的退出码
+     * @throws TimeoutException
+     *             命令超时被kill
+     * @throws Exception
+     *             worker异常退出或者handler抛出的异常
+     */
+    public int run(String cmd, Map<String, String> env, long timeout,
+            LineHandler handler) throws Exception {
+        return run(cmd, env, timeout, handler, null);
+    }
+
+    /**
+     * 用worker执行命令，命令启动后pid记录在job中，可以随时用{@link Job#kill()}取消
+     *
+     * @param cmd
+     * @param env
+     *            null表示不增加环境变量
+     * @param timeout
+     *            单位milliseconds
+     * @param handler
+     * @param job
+     *            null表示不需要取消
+     * @return int 命令的退出码
+     * @throws TimeoutException
+     *             命令超时被kill
+     * @throws Exception
+     *             worker异常退出或者handler抛出的异常
+     */
+    public int run(String cmd, Map<String, String> env, long timeout,
+            LineHandler handler, Job job) throws Exception {
+        // 拆分失败时和fork执行一样抛出IllegalArgumentException，不占用worker
+        String[] args = CommandLine.parse(cmd).toStrings();
+        permits.acquire();
+        Worker w = null;
+        boolean ok = false;
+        try {
+            w = idle.poll();
+            while (w != null && w.expired()) {
+                w.close();
+                w = idle.poll();
+            }
+            if (w == null)
+                w = new Worker();
+            int exitValue = w.run(cmd, args, env, timeout, handler, job);
+            ok = true;
+            return exitValue;
+        } finally {
+            if (w != null) {
+                if (!ok)
+                    w.destroy();
+                else if (closed || w.expired())
+                    w.close();
+                else
+                    idle.offer(w);
+            }
+            permits.release();
+        }
+    }
+
+    public void shutdown() {
+        closed = true;
+        timer.shutdownNow();
+        for (Worker w = idle.poll(); w != null; w = idle.poll()) {
+            w.close();
+        }
+    }
+
+    private static void kill(String pid) {
+        try {
+            Runtime.getRuntime().exec(new String[] { "kill", "-9", pid })
+                    .waitFor();
+        } catch (Exception e) {
+            LOG.warn("kill " + pid + " error", e);
+        }
+    }
+
+    /**
+     * worker上正在执行的一个命令。命令是worker fork出来的子shell exec的，
+     * 启动之前的一瞬间还没有带上export的环境变量，按环境变量查找进程会漏掉它，所以取消时直接kill它的pid
+     */
+    public static class Job {
+        private String pid = null;
+        private boolean killed = false;
+
+        synchronized void started(String pid) {
+            this.pid = pid;
+            // 启动之前已经被取消
+            if (killed)
+                ShellPool.kill(pid);
+        }
+
+        // 命令结束后pid可能被别的进程重用
+        synchronized void finished() {
+            pid = null;
+        }
+
+        /**
+         * kill命令，还没有启动时在启动后立即kill
+         */
+        public synchronized void kill() {
+            if (killed)
+                return;
+            killed = true;
+            if (pid != null)
+                ShellPool.kill(pid);
+        }
+    }
+
+    /**
+     * 接收命令输出的回调
+     */
+    public interface LineHandler {
+        void line(String line) throws Exception;
+    }
+
+    // 把参数放进单引号，参数里的单引号写成'\''
+    private static String quote(String cmd) {
+        return "'" + cmd.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * 一个常驻的sh进程
+     */
+    private class Worker {
+        private final Process process;
+        private final Writer stdin;
+        private final BufferedReader stdout;
+        private final BufferedReader stderr;
+        private final String sentinel;
+        private final long startTime = System.currentTimeMillis();
+        private int uses = 0;
+        // 被超时kill过，不能再使用
+        private volatile boolean killed = false;
+
+        Worker() throws IOException {
+            process = new ProcessBuilder("/bin/sh").start();
+            stdin = new OutputStreamWriter(process.getOutputStream());
+            stdout = new BufferedReader(new InputStreamReader(process
+                    .getInputStream()));
+            stderr = new BufferedReader(new InputStreamReader(process
+                    .getErrorStream()));
+            sentinel = "JA_SHELL_" + Long.toHexString(random.nextLong())
+                    + Long.toHexString(random.nextLong());
+            LOG.debug("start shell worker " + sentinel);
+        }
+
+        boolean expired() {
+            return killed || uses >= maxUses
+                    || (maxAge > 0 && System.currentTimeMillis() - startTime > maxAge);
+        }
+
+        int run(String cmd, String[] args, Map<String, String> env,
+                long timeout, LineHandler handler, Job job) throws Exception {
+            uses++;
+            StringBuilder exports = new StringBuilder();
+            for (Entry<String, String> e : env == null ? Collections
+                    .<String, String> emptyMap().entrySet() : env.entrySet()) {
+                exports.append("export ").append(e.getKey()).append('=')
+                        .append(quote(e.getValue())).append("; ");
+            }
+            StringBuilder argv = new StringBuilder();
+            for (String arg : args) {
+                argv.append(' ').append(quote(arg));
+            }
+            stdin.write("(" + exports + "exec" + argv
+                    + ") </dev/null 2>&1 & echo \"" + sentinel
+                    + " $!\" >&2; wait $!; echo \"" + sentinel + " $?\"\n");
+            stdin.flush();
+            // 被kill的命令结束后sh会在stderr上报告Killed，跳过这些行
+            String pid;
+            do {
+                pid = stderr.readLine();
+                if (pid == null)
+                    throw new IOException("shell worker exited");
+            } while (!pid.startsWith(sentinel));
+            final Kill kill = new Kill(pid.substring(sentinel.length()).trim());
+            ScheduledFuture<?> f = timer.schedule(kill, timeout,
+                    TimeUnit.MILLISECONDS);
+            if (job != null)
+                job.started(kill.pid);
+            try {
+                String line;
+                while ((line = stdout.readLine()) != null) {
+                    int i = line.indexOf(sentinel);
+                    if (i < 0) {
+                        handler.line(line);
+                        continue;
+                    }
+                    // 最后一行没有换行时哨兵接在它后面
+                    if (i > 0)
+                        handler.line(line.substring(0, i));
+                    if (killed)
+                        break;
+                    return Integer.parseInt(line.substring(
+                            i + sentinel.length()).trim());
+                }
+            } finally {
+                f.cancel(false);
+                if (job != null)
+                    job.finished();
+            }
+            // 命令被kill后worker还可能写出哨兵
+            if (killed)
+                throw new TimeoutException("command timeout after " + timeout
+                        + "ms: " + cmd);
+            throw new IOException("shell worker exited");
+        }
+
+        // 正常退出，sh读到EOF后结束
+        void close() {
+            try {
+                stdin.close();
+            } catch (IOException e) {
+            }
+            closeQuietly();
+        }
+
+        void destroy() {
+            process.destroy();
+            closeQuietly();
+        }
+
+        private void closeQuietly() {
+            try {
+                stdout.close();
+                stderr.close();
+            } catch (IOException e) {
+            }
+        }
+
+        /**
+         * 超时后kill命令并销毁worker，读输出的线程随后读到EOF
+         */
+        private class Kill implements Runnable {
+            private final String pid;
+            Kill(String pid) {
+                this.pid = pid;
+            }
+
+            @Override
+            public void run() {
+                killed = true;
+                LOG.warn("shell worker command timeout, kill " + pid);
+                kill(pid);
+                process.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.sohu.cloudno.comm;
+
+/**
+ * SPILL帧的负载，说明溢出到agent本地的输出从哪里读取
+ *
+ * <p>
+ * 格式为每行一个key=value：host、port和token。描述符在开始溢出时写出，
+ * 输出的总字节数和crc32在传输结尾由agent发送。
+ */
+public class SpillDescriptor {
+    private final String host;
+    private final int port;
+    private final String token;
+
+    public SpillDescriptor(String host, int port, String token) {
+        this.host = host;
+        this.port = port;
+        this.token = token;
+    }
+
+    /**
+     * 解析SPILL帧的负载
+     *
+     * @param payload
+     * @return SpillDescriptor
+     * @throws IllegalArgumentException
+     *             缺少字段
+     */
+    public static SpillDescriptor parse(byte[] payload) {
+        String host = null, token = null;
+        int port = -1;
+        for (String line : ToolUtil.toStr(payload).split("\n")) {
+            int eq = line.indexOf('=');
+            if (eq <= 0)
+                continue;
+            String key = line.substring(0, eq);
+            String value = line.substring(eq + 1);
+            if (key.equals("host"))
+                host = value;
+            else if (key.equals("port"))
+                port = Integer.parseInt(value);
+            else if (key.equals("token"))
+                token = value;
+        }
+        if (host == null || port < 0 || token == null)
+            throw new IllegalArgumentException("bad spill descriptor \""
+                    + ToolUtil.toStr(payload) + "\"");
+        return new SpillDescriptor(host, port, token);
+    }
+
+    public byte[] encode() {
+        return ToolUtil.toByte("host=" + host + "\nport=" + port + "\ntoken="
+                + token + "\n");
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -3,6 +3,8 @@ package com.sohu.cloudno.comm;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
@@ -14,8 +16,11 @@ import java.io.StringWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,6 +37,12 @@ public class ToolUtil {
 
     // 网络传输字符集
     private static final Charset CHARSET = Charset.forName("UTF-8");
+    // 执行短命令的shell worker，null表示总是fork
+    private static volatile ShellPool shellPool = null;
+
+    public static void setShellPool(ShellPool pool) {
+        shellPool = pool;
+    }
 
     /**
      * 检查是否是合法的ip
@@ -81,6 +92,27 @@ public class ToolUtil {
         return str.getBytes(CHARSET);
     }
 
+    /**
+     * 计算字符串的MD5摘要，用于快速判断内容是否变化
+     * 
+     * @param str
+     * @return String 16进制表示的摘要
+     */
+    public static String md5Hex(String str) {
+        try {
+            byte[] md5 = MessageDigest.getInstance("MD5").digest(toByte(str));
+            StringBuilder sb = new StringBuilder(md5.length * 2);
+            for (byte b : md5) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+                        Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // MD5是JDK必须支持的算法
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * 睡眠指定的毫秒数
      * 
@@ -163,6 +195,15 @@ public class ToolUtil {
     public static String runOSCmd(String cmd, int timeout) {
         if (ToolUtil.isWindows())
             return ToolUtil.getFirstLine(cmd);
+        ShellPool pool = shellPool;
+        if (pool != null && pool.accept(timeout)) {
+            try {
+                List<String> ret = runPooled(pool, cmd, timeout);
+                return ret == null ? null : ToolUtil.replaceBlank(join(ret));
+            } catch (TimeoutException e) {
+                return "T";
+            }
+        }
 
         String exitvalue = null;
         ExecuteWatchdog watchdog = null;
@@ -212,6 +253,15 @@ public class ToolUtil {
     public static String runOSCmdRaw(String cmd, long timeout) {
         if (ToolUtil.isWindows())
             return ToolUtil.getFirstLine(cmd);
+        ShellPool pool = shellPool;
+        if (pool != null && pool.accept(timeout)) {
+            try {
+                List<String> ret = runPooled(pool, cmd, timeout);
+                return ret == null ? null : join(ret);
+            } catch (TimeoutException e) {
+                return null;
+            }
+        }
 
         String exitvalue = null;
         timeout = timeout <= 0 ? ExecuteWatchdog.INFINITE_TIMEOUT : timeout;
@@ -332,6 +382,14 @@ public class ToolUtil {
     public static List<String> runOSCmdReturnList(String cmd, long timeout) {
         if (ToolUtil.isWindows())
             return ToolUtil.getAllLine(cmd);
+        ShellPool pool = shellPool;
+        if (pool != null && pool.accept(timeout)) {
+            try {
+                return runPooled(pool, cmd, timeout);
+            } catch (TimeoutException e) {
+                return null;
+            }
+        }
 
         List<String> ret = null;
         ExecuteWatchdog watchdog = null;
@@ -387,6 +445,123 @@ public class ToolUtil {
         }
     }
 
+    /**
+     * 用shell worker执行命令，和fork执行一样，退出码不是0时忽略输出
+     * 
+     * @param pool
+     * @param cmd
+     * @param timeout
+     * @return List 命令的输出，null表示退出码不是0或者执行异常
+     * @throws TimeoutException
+     */
+    private static List<String> runPooled(ShellPool pool, String cmd,
+            long timeout) throws TimeoutException {
+        final List<String> ret = new ArrayList<String>();
+        try {
+            int exitValue = pool.run(cmd, timeout, new ShellPool.LineHandler() {
+                @Override
+                public void line(String line) {
+                    ret.add(line);
+                }
+            });
+            if (exitValue == 0)
+                return ret;
+            LOG.warn("script " + cmd + " run abort, exit " + exitValue);
+            return null;
+        } catch (TimeoutException e) {
+            LOG.warn("script " + cmd + " run abort, " + e.getMessage());
+            throw e;
+        } catch (Exception e) {
+            LOG.warn("script " + cmd + " run abort," + ToolUtil.exceptionMsg(e), e);
+            return null;
+        }
+    }
+
+    // 按行连接，每行以换行结尾
+    private static String join(List<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * kill环境变量中带有name=value的所有进程，子进程继承环境变量，所以能kill整个进程树，
+     * 包括已经脱离父进程的子进程。kill之后重新扫描，直到没有新的进程出现
+     * 
+     * @param name
+     * @param value
+     * @return int kill的进程数
+     */
+    public static int killByEnv(String name, String value) {
+        if (isWindows())
+            return 0;
+        byte[] entry = toByte(name + "=" + value);
+        int killed = 0;
+        for (int round = 0; round < 3; round++) {
+            List<String> pids = new ArrayList<String>();
+            File[] procs = new File("/proc").listFiles();
+            for (int i = 0; procs != null && i < procs.length; i++) {
+                String pid = procs[i].getName();
+                if (pid.matches("\\d+")
+                        && hasEnv(new File(procs[i], "environ"), entry))
+                    pids.add(pid);
+            }
+            if (pids.isEmpty())
+                break;
+            pids.add(0, "-9");
+            pids.add(0, "kill");
+            try {
+                Runtime.getRuntime().exec(pids.toArray(new String[pids.size()]))
+                        .waitFor();
+            } catch (Exception e) {
+                LOG.warn("kill " + pids + " error", e);
+                break;
+            }
+            LOG.info("killed " + pids.subList(2, pids.size()) + " with " + name
+                    + "=" + value);
+            killed += pids.size() - 2;
+        }
+        return killed;
+    }
+
+    // /proc/<pid>/environ是\0分隔的name=value
+    private static boolean hasEnv(File environ, byte[] entry) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(environ);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] b = new byte[4096];
+            for (int n; (n = fis.read(b)) > 0;) {
+                bos.write(b, 0, n);
+            }
+            byte[] env = bos.toByteArray();
+            for (int start = 0; start < env.length;) {
+                int end = start;
+                while (end < env.length && env[end] != 0)
+                    end++;
+                if (end - start == entry.length) {
+                    int k = 0;
+                    while (k < entry.length && env[start + k] == entry[k])
+                        k++;
+                    if (k == entry.length)
+                        return true;
+                }
+                start = end + 1;
+            }
+        } catch (IOException e) {
+            // 进程已经退出或者没有权限
+        } finally {
+            try {
+                if (fis != null)
+                    fis.close();
+            } catch (IOException e) {
+            }
+        }
+        return false;
+    }
+
     /**
      * 从配置文件中读第一行，不包括注释行
      * 
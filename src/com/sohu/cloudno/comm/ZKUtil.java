@@ -2,11 +2,16 @@ package com.sohu.cloudno.comm;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.KeeperException.NoNodeException;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
@@ -58,6 +63,29 @@ public class ZKUtil {
         return zk;
     }
 
+    /**
+     * 用已有的session id和密码连接zk，接管上一个进程的session，
+     * session已经过期时watcher会收到Expired事件
+     * 
+     * @param conf
+     * @param watcher
+     * @param sessionId
+     * @param passwd
+     * @return ZooKeeper
+     * @throws IOException
+     */
+    public static ZooKeeper conn(Conf conf, Watcher watcher, long sessionId,
+            byte[] passwd) throws IOException {
+        String ensemble = conf.get("ZKServer");
+        if (ensemble == null) {
+            throw new IOException("Unable to determine ZooKeeper ensemble");
+        }
+        int timeout = conf.getInt("zookeeper.session.timeout", 180 * 1000);
+        LOG.debug(" reattach session 0x" + Long.toHexString(sessionId)
+                + " with ensemble (" + ensemble + "), timeout is" + timeout);
+        return new ZooKeeper(ensemble, timeout, watcher, sessionId, passwd);
+    }
+
     /**
      * Check if the specified node exists. Sets no watches.
      * 
@@ -286,6 +314,25 @@ public class ZKUtil {
         }
     }
 
+    /**
+     * 建立临时节点，不检查节点是否已经存在，也不打印数据，用于写入大块的命令输出
+     * 
+     * @param zkw
+     *            zk reference
+     * @param znode
+     *            path of node
+     * @param data
+     *            data of node
+     * @throws KeeperException
+     *             if unexpected zookeeper exception
+     * @throws InterruptedException
+     */
+    public static void creatEphemeralNode(ZooKeeperWatcher zkw, String znode,
+            byte[] data) throws KeeperException, InterruptedException {
+        zkw.getZooKeeper().create(znode, data, Ids.OPEN_ACL_UNSAFE,
+                CreateMode.EPHEMERAL);
+    }
+
     /**
      * 
      * Set the specified znode to be an ephemeral node carrying the specified
@@ -642,6 +689,93 @@ public class ZKUtil {
         return newNodes;
     }
 
+    /**
+     * 和watchAndGetNewChildren一样取得新的子节点，但是所有getData异步发出，
+     * 只等待一次往返；子节点本身不设置watch。
+     * 
+     * <p>
+     * 异步回调由ZooKeeper的事件线程执行，所以不能在Watcher的回调中调用
+     * 
+     * @param zkw
+     * @param baseNode
+     * @return List 新的子节点和数据，读取前已经被删除的节点不返回
+     * @throws KeeperException
+     */
+    public static List<NodeAndData> getNewChildrenPipelined(
+            ZooKeeperWatcher zkw, String baseNode) throws KeeperException {
+        final List<String> paths = new ArrayList<String>();
+        synchronized (zkw.getNodes()) {
+            List<String> nodes = lsChildrenAndWatchForNewChildren(zkw, baseNode);
+            for (String node : nodes) {
+                String nodePath = joinZNode(baseNode, node);
+                if (zkw.getNodes().add(nodePath))
+                    paths.add(nodePath);
+            }
+        }
+        final int[] rcs = new int[paths.size()];
+        final byte[][] datas = new byte[paths.size()][];
+        final CountDownLatch latch = new CountDownLatch(paths.size());
+        DataCallback cb = new DataCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx,
+                    byte[] data, Stat stat) {
+                int i = (Integer) ctx;
+                rcs[i] = rc;
+                datas[i] = data;
+                latch.countDown();
+            }
+        };
+        ZooKeeper zk = zkw.getZooKeeper();
+        for (int i = 0; i < paths.size(); i++) {
+            zk.getData(paths.get(i), false, cb, i);
+        }
+        List<NodeAndData> newNodes = new ArrayList<NodeAndData>();
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            zkw.interruptedException(e);
+            return newNodes;
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            if (rcs[i] == Code.OK.intValue()) {
+                newNodes.add(new NodeAndData(paths.get(i), datas[i]));
+            } else if (rcs[i] == Code.NONODE.intValue()) {
+                delNodeFromInsideSet(zkw, paths.get(i));
+            } else {
+                KeeperException e = KeeperException.create(Code.get(rcs[i]),
+                        paths.get(i));
+                LOG.warn(zkw.prefix("Unable to get data of znode "
+                        + paths.get(i)), e);
+                zkw.keeperException(e);
+            }
+        }
+        return newNodes;
+    }
+
+    /**
+     * 异步删除一批没有子节点的节点，不等待结果；删除后从zkw内部的nodes集合去掉
+     * 
+     * @param zkw
+     * @param nodes
+     */
+    public static void delNodesAsync(final ZooKeeperWatcher zkw,
+            Collection<String> nodes) {
+        VoidCallback cb = new VoidCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx) {
+                if (rc == Code.OK.intValue() || rc == Code.NONODE.intValue())
+                    delNodeFromInsideSet(zkw, path);
+                else
+                    LOG.warn(zkw.prefix("Unable to delete znode " + path
+                            + ", " + Code.get(rc)));
+            }
+        };
+        ZooKeeper zk = zkw.getZooKeeper();
+        for (String node : nodes) {
+            zk.delete(node, -1, cb, null);
+        }
+    }
+
     /**
      * 清除zkw内部的watcher nodes集合的某个node
      * 和watchAndGetNewChildren配合使用，以便再次添加相同节点能收到通知
@@ -745,6 +879,39 @@ public class ZKUtil {
                 + Constant.OUTPUT + "/cmd@" + serialID);
     }
 
+    /**
+     * 得到取消命令的标记节点路径，和命令一样放在input下
+     * 
+     * @return
+     */
+    public static String getCancelPath(String ip, long serialID) {
+        return joinZNode(Constant.ROOT + Constant.REMOTECONTROL, ip
+                + Constant.INPUT + "/" + Constant.CANCEL + serialID);
+    }
+
+    /**
+     * 得到命令输出节点路径中序号之前的部分。旧的布局所有命令的输出平铺在output下，
+     * 节点是cmd@序列号_序号；新的布局每个命令一个父节点cmd@序列号，节点是cmd@序列号/序号
+     * 
+     * @return
+     */
+    public static String getOutputNodePrefix(String ip, long serialID,
+            boolean dir) {
+        return getOutputRetPath(ip, serialID) + (dir ? "/" : "_");
+    }
+
+    /**
+     * 得到客户端确认输出消费进度的节点路径，旧的布局放在output下，新的布局放在命令的父节点下
+     * 
+     * @return
+     */
+    public static String getAckPath(String ip, long serialID, boolean dir) {
+        if (dir)
+            return getOutputRetPath(ip, serialID) + "/" + Constant.DIR_ACK;
+        return joinZNode(Constant.ROOT + Constant.REMOTECONTROL, ip
+                + Constant.OUTPUT + "/" + Constant.ACK + serialID);
+    }
+
     /**
      * Returns the full path of the immediate parent of the specified node.
      * 
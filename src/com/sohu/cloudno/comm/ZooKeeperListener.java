@@ -86,4 +86,31 @@ public class ZooKeeperListener {
     public void nodeChildrenChanged(String path) {
         // no-op
     }
+
+    /**
+     * Called when the connection to ZooKeeper reaches SyncConnected, either
+     * for a new session or after a disconnect within the same session.
+     * 
+     * @param sessionId
+     *            the session the connection belongs to
+     */
+    public void connected(long sessionId) {
+        // no-op
+    }
+
+    /**
+     * Called when the connection to ZooKeeper is lost. The session may still
+     * be alive, ephemeral nodes and watches survive until it expires.
+     */
+    public void disconnected() {
+        // no-op
+    }
+
+    /**
+     * Called when the session has expired. Ephemeral nodes of the session are
+     * already gone and the connection must be re-created.
+     */
+    public void sessionExpired() {
+        // no-op
+    }
 }
\ No newline at end of file
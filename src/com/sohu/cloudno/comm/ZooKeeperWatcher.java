@@ -45,6 +45,8 @@ public class ZooKeeperWatcher implements Watcher, Abortable {
     private Conf conf;
 
     private CountDownLatch connectedSignal = new CountDownLatch(1);
+    // 接管的旧session在建立连接时已经过期
+    private volatile boolean expiredOnConnect = false;
 
     // 已经设置了watcher的znodes集合
     private Set<String> unassignedNodes = new HashSet<String>();
@@ -78,6 +80,27 @@ public class ZooKeeperWatcher implements Watcher, Abortable {
     public ZooKeeperWatcher(Conf conf, String descriptor, Abortable abortable)
             throws IOException, ZooKeeperConnectionException,
             InterruptedException {
+        this(conf, descriptor, abortable, 0, null);
+    }
+
+    /**
+     * Instantiate a ZooKeeper connection that reattaches to an existing
+     * session, so its ephemeral nodes survive a process restart.
+     * 
+     * @param descriptor
+     *            Descriptive string that is added to zookeeper sessionid and
+     *            used as identifier for this instance.
+     * @param sessionId
+     *            session to reattach, 0 for a new session
+     * @param passwd
+     *            password of the session
+     * @throws IOException
+     * @throws ZooKeeperConnectionException
+     *             also thrown when the session has already expired
+     */
+    public ZooKeeperWatcher(Conf conf, String descriptor, Abortable abortable,
+            long sessionId, byte[] passwd) throws IOException,
+            ZooKeeperConnectionException, InterruptedException {
 
         this.conf = conf;
 
@@ -85,7 +108,8 @@ public class ZooKeeperWatcher implements Watcher, Abortable {
         // handle the syncconnect event.
         this.identifier = descriptor;
         this.abortable = abortable;
-        this.zooKeeper = ZKUtil.conn(this.conf, this);
+        this.zooKeeper = sessionId == 0 ? ZKUtil.conn(this.conf, this)
+                : ZKUtil.conn(this.conf, this, sessionId, passwd);
         // fixed by yilai,一直等待连接成功或者到达超时
         if (!connectedSignal
                 .await(this.conf.getInt("hbase.zookeeper.recoverable.waittime",
@@ -108,6 +132,11 @@ public class ZooKeeperWatcher implements Watcher, Abortable {
                             + " error ");
         }
         ;
+        if (expiredOnConnect) {
+            this.zooKeeper.close();
+            throw new ZooKeeperConnectionException("session 0x"
+                    + Long.toHexString(sessionId) + " has expired");
+        }
         LOG.debug("zk has connected " + this.zooKeeper + " " + this.toString());
     }
 
@@ -192,19 +221,32 @@ public class ZooKeeperWatcher implements Watcher, Abortable {
             // fixed by yilai,通知连接成功
             if (connectedSignal.getCount() > 0)
                 connectedSignal.countDown();
+            for (ZooKeeperListener listener : listeners) {
+                listener.connected(zooKeeper.getSessionId());
+            }
             break;
 
         // Abort the server if Disconnected or Expired
         // TODO: any reason to handle these two differently?
         case Disconnected:
             LOG.info(prefix("Received Disconnected from ZooKeeper, ignoring"));
+            for (ZooKeeperListener listener : listeners) {
+                listener.disconnected();
+            }
             break;
 
         case Expired:
+            // 接管旧session失败，由构造函数抛出异常，不通知abortable
+            if (connectedSignal.getCount() > 0) {
+                expiredOnConnect = true;
+                connectedSignal.countDown();
+                break;
+            }
             String why = prefix(this.identifier
                     + " received expired from ZooKeeper, aborting");
-            // TODO: One thought is to add call to ZooKeeperListener so say,
-            // ZooKeperNodeTracker can zero out its data values.
+            for (ZooKeeperListener listener : listeners) {
+                listener.sessionExpired();
+            }
             if (abortable != null)
                 abortable.abort(why,
                         new KeeperException.SessionExpiredException());
@@ -223,6 +265,15 @@ public class ZooKeeperWatcher implements Watcher, Abortable {
         listeners.add(listener);
     }
 
+    /**
+     * Stop sending ZooKeeper events to the specified listener.
+     * 
+     * @param listener
+     */
+    public void unregisterListener(ZooKeeperListener listener) {
+        listeners.remove(listener);
+    }
+
     /**
      * Register the specified listener to receive ZooKeeper events and add it as
      * the first in the list of current listeners.
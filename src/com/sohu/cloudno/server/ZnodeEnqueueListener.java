@@ -4,6 +4,7 @@ import java.util.Date;
 import java.util.List;
 
 import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
 
 import com.sohu.cloudno.comm.Constant;
@@ -105,23 +106,7 @@ public class ZnodeEnqueueListener extends ZooKeeperListener {
                 List<NodeAndData> list = ZKUtil.watchAndGetNewChildren(zkw,    path);
                 // 如果有节点新增，入队（如果是删除，list为null)
                 for (int i = 0; i < list.size(); ++i) {
-                    String node = list.get(i).getNode();
-                    ZKUtil.watchAndGetNewChildren(zkw, node);
-                    Stat stat = ZKUtil.getStatNoWatch(zkw, node);
-                    // 取当前Znode的父节点
-                    Stat statParent = ZKUtil.getStatNoWatch(zkw, ZKUtil.getParent(node));
-
-                    String value = "0#" + stat.getCzxid() + "#" + node + "#"
-                            + statParent.getCzxid() + "#3#"
-                            + ToolUtil.toStr(list.get(i).getData()) + "#"
-                            + stat.getMtime();
-                    if (path.indexOf("pingstatus") != -1) {
-                        LOG.info("insert into pingqueue, status is CREATE, path is \""    + node + "\"");
-                        ZKUtil.creatSeqNode(zkw, getQueuePath() + "/q@", ToolUtil.toByte(value));
-                    } else {
-                        LOG.info("insert into jaqueue, status is CREATE, path is \"" + node + "\"");
-                        ZKUtil.creatSeqNode(zkw, getJAQueuePath() + "/q@",    ToolUtil.toByte(value));
-                    }
+                    enqueueCreated(path, list.get(i));
                 }
             }
         } catch (Exception e) {
@@ -131,6 +116,46 @@ public class ZnodeEnqueueListener extends ZooKeeperListener {
         }
     }
 
+    /**
+     * 新增节点入队，并对它设置children类型 watcher。
+     * 在watcher设置之前就已经建立的子节点收不到通知，这里一并入队，
+     * 所以agent连续建立group和instance节点时不会丢消息
+     * 
+     * @param path
+     *            新增节点的父节点
+     * @param nodeAndData
+     *            新增节点
+     * @throws KeeperException
+     */
+    private void enqueueCreated(String path, NodeAndData nodeAndData)
+            throws KeeperException {
+        String node = nodeAndData.getNode();
+        List<NodeAndData> children = ZKUtil.watchAndGetNewChildren(zkw, node);
+        Stat stat = ZKUtil.getStatNoWatch(zkw, node);
+        // 取当前Znode的父节点
+        Stat statParent = ZKUtil.getStatNoWatch(zkw, ZKUtil.getParent(node));
+        if (stat == null || statParent == null) {
+            // 节点已经被删除，删除消息由nodeDeleted入队
+            return;
+        }
+
+        String value = "0#" + stat.getCzxid() + "#" + node + "#"
+                + statParent.getCzxid() + "#3#"
+                + ToolUtil.toStr(nodeAndData.getData()) + "#"
+                + stat.getMtime();
+        if (path.indexOf("pingstatus") != -1) {
+            LOG.info("insert into pingqueue, status is CREATE, path is \""    + node + "\"");
+            ZKUtil.creatSeqNode(zkw, getQueuePath() + "/q@", ToolUtil.toByte(value));
+        } else {
+            LOG.info("insert into jaqueue, status is CREATE, path is \"" + node + "\"");
+            ZKUtil.creatSeqNode(zkw, getJAQueuePath() + "/q@",    ToolUtil.toByte(value));
+        }
+
+        for (NodeAndData child : children) {
+            enqueueCreated(node, child);
+        }
+    }
+
     /**
      * 得到queue的路径
      * 
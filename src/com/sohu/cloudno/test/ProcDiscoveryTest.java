@@ -0,0 +1,129 @@
+package com.sohu.cloudno.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import com.sohu.cloudno.agent.ProcInstanceDiscovery;
+import com.sohu.cloudno.comm.Conf;
+
+/**
+ * 用伪造的/proc目录检查ProcInstanceDiscovery，不需要zk
+ *
+ * <p>
+ * java -cp bin:lib/* com.sohu.cloudno.test.ProcDiscoveryTest，全部通过时退出码为0
+ */
+public class ProcDiscoveryTest {
+    private static final String TCP_HEADER = "  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n";
+    private static int failed = 0;
+
+    public static void main(String[] args) throws Exception {
+        File root = setUp();
+        try {
+            // mysqld监听3306，mongod在运行但27017被别的进程占用；没有keepalived，is_ha输出为N
+            check("only listen sockets of db processes",
+                    "JA_RESULT=N:mysql:MYSQL:1:db_3306:d1\n"
+                            + "N:lvs:LVS:4:v_80:d4", discover(root));
+
+            process(root, "400", "keepalived", "/usr/sbin/keepalived\0-D\0", 0);
+            check("keepalived keeps is_ha",
+                    "JA_RESULT=Y:mysql:MYSQL:1:db_3306:d1\n"
+                            + "N:lvs:LVS:4:v_80:d4", discover(root));
+
+            delete(new File(root, "100"));
+            delete(new File(root, "net/ip_vs"));
+            check("nothing running", "JA_RESULT=Y", discover(root));
+
+            for (String pid : new String[] { "200", "300", "400" }) {
+                delete(new File(root, pid));
+            }
+            check("unreadable proc", null, discover(root));
+        } finally {
+            delete(root);
+        }
+        System.out.println(failed == 0 ? "all passed" : failed + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static File setUp() throws IOException {
+        File root = Files.createTempDirectory("proc").toFile();
+        write(new File(root, "db_relation.conf"),
+                "# is_ha:type:GRP:grp:inst:data\n"
+                        + "JA_RESULT=Y:mysql:MYSQL:1:db_3306:d1\n"
+                        + "N:mysql:MYSQL:2:db_3307:d2\n"
+                        + "N:mongodb:MONGO:3:m_27017:d3\n"
+                        + "N:lvs:LVS:4:v_80:d4\n");
+        process(root, "100", "mysqld", "/usr/sbin/mysqld\0--port=3306\0", 1001);
+        process(root, "200", "mongod", "mongod\0", 0);
+        process(root, "300", "nc", "nc\0-l\0-p\0" + "27017\0", 1003);
+        write(new File(root, "net/tcp"), TCP_HEADER
+                + "   0: 00000000:0CEA 00000000:0000 0A 00000000:00000000 00:00000000 00000000   27        0 1001 1 0000000000000000 100 0 0 10 0\n"
+                + "   1: 00000000:0CEB 00000000:0000 0A 00000000:00000000 00:00000000 00000000   27        0 1002 1 0000000000000000 100 0 0 10 0\n"
+                + "   2: 0100007F:0CEA 0100007F:9C40 01 00000000:00000000 00:00000000 00000000   27        0 1004 1 0000000000000000 100 0 0 10 0\n");
+        write(new File(root, "net/tcp6"), TCP_HEADER
+                + "   0: 00000000000000000000000000000000:6989 00000000000000000000000000000000:0000 0A 00000000:00000000 00:00000000 00000000     0        0 1003 1 0000000000000000 100 0 0 10 0\n");
+        write(new File(root, "net/ip_vs"),
+                "IP Virtual Server version 1.2.1 (size=4096)\n"
+                        + "Prot LocalAddress:Port Scheduler Flags\n"
+                        + "  -> RemoteAddress:Port Forward Weight ActiveConn InActConn\n"
+                        + "TCP  0A0A3A64:0050 rr\n");
+        return root;
+    }
+
+    private static String discover(File root) {
+        Conf conf = new Conf();
+        conf.set("discovery.proc.root", root.getPath());
+        conf.set("discovery.relation.file", new File(root,
+                "db_relation.conf").getPath());
+        return new ProcInstanceDiscovery(conf).discover();
+    }
+
+    private static void check(String name, String expected, String actual) {
+        boolean ok = expected == null ? actual == null : expected
+                .equals(actual);
+        if (!ok) {
+            failed++;
+            System.out.println("FAIL " + name + ": expected <" + expected
+                    + "> but was <" + actual + ">");
+        } else {
+            System.out.println("PASS " + name);
+        }
+    }
+
+    // 建立/proc/[pid]，socket不为0时fd/3指向它
+    private static void process(File root, String pid, String name,
+            String cmdline, long socket) throws IOException {
+        File dir = new File(root, pid);
+        write(new File(dir, "status"), "Name:\t" + name
+                + "\nState:\tS (sleeping)\n");
+        write(new File(dir, "cmdline"), cmdline);
+        File fd = new File(dir, "fd");
+        fd.mkdirs();
+        Files.createSymbolicLink(new File(fd, "0").toPath(), new File(
+                "/dev/null").toPath());
+        if (socket != 0)
+            Files.createSymbolicLink(new File(fd, "3").toPath(), new File(
+                    "socket:[" + socket + "]").toPath());
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null && !Files.isSymbolicLink(file.toPath())) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}